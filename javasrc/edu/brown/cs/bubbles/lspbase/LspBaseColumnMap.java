@@ -0,0 +1,198 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseColumnMap.java                                           */
+/*                                                                              */
+/*      Map between character columns and LSP position encodings               */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *      Java chars are UTF-16 code units, so no map is needed for utf-16.
+ *      For utf-8 and utf-32 each line is examined once per document
+ *      version: lines where the encodings agree are marked simple and
+ *      convert by identity; other lines keep the number of code units
+ *      before each char.
+ **/
+
+class LspBaseColumnMap implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LspBaseDocument for_document;
+private boolean         use_utf8;
+private Map<Integer,int []> line_units;
+
+private static final int [] SIMPLE_LINE = new int[0];
+
+static final String ENCODING_UTF8 = "utf-8";
+static final String ENCODING_UTF16 = "utf-16";
+static final String ENCODING_UTF32 = "utf-32";
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Return the map for the document, or null if the encoding is utf-16
+ *      and columns need no conversion.
+ **/
+
+static LspBaseColumnMap create(LspBaseDocument doc,String enc)
+{
+   if (enc == null || enc.equals(ENCODING_UTF16)) return null;
+
+   return new LspBaseColumnMap(doc,enc.equals(ENCODING_UTF8));
+}
+
+
+private LspBaseColumnMap(LspBaseDocument doc,boolean utf8)
+{
+   for_document = doc;
+   use_utf8 = utf8;
+   line_units = new ConcurrentHashMap<>();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+boolean isFor(LspBaseDocument doc)             { return doc == for_document; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Mapping methods                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Convert a char column within the line starting at lstart and ending
+ *      at lend to an LSP column.
+ **/
+
+int toLspColumn(int line,int lstart,int lend,int col)
+{
+   int [] units = getUnits(line,lstart,lend);
+   if (units == SIMPLE_LINE || col < 0) return col;
+
+   int n = units.length - 1;
+   if (col <= n) return units[col];
+   return units[n] + col - n;
+}
+
+
+int toCharColumn(int line,int lstart,int lend,int lspcol)
+{
+   int [] units = getUnits(line,lstart,lend);
+   if (units == SIMPLE_LINE || lspcol < 0) return lspcol;
+
+   int n = units.length - 1;
+   if (lspcol >= units[n]) return n + lspcol - units[n];
+
+   // the low half of a pair adds no units, so the char that starts at the
+   // column is the last one with that value; otherwise the one containing it
+   int idx = Arrays.binarySearch(units,lspcol);
+   if (idx >= 0) {
+      while (idx < n && units[idx+1] == lspcol) ++idx;
+      return idx;
+    }
+   return -idx - 2;
+}
+
+
+private int [] getUnits(int line,int lstart,int lend)
+{
+   int [] units = line_units.get(line);
+   if (units != null) return units;
+
+   units = computeUnits(lstart,lend);
+   line_units.put(line,units);
+   return units;
+}
+
+
+private int [] computeUnits(int lstart,int lend)
+{
+   int dlen = for_document.length();
+   if (lstart < 0) lstart = 0;
+   if (lend > dlen) lend = dlen;
+   int n = lend - lstart;
+   if (n <= 0) return SIMPLE_LINE;
+
+   char [] chars = new char[n];
+   for_document.getChars(lstart,n,chars);
+
+   boolean simple = true;
+   for (int i = 0; i < n && simple; ++i) {
+      char c = chars[i];
+      if (use_utf8) simple = c < 0x80;
+      else simple = !Character.isSurrogate(c);
+    }
+   if (simple) return SIMPLE_LINE;
+
+   int [] units = new int[n+1];
+   for (int i = 0; i < n; ++i) {
+      units[i+1] = units[i] + getUnitCount(chars[i]);
+    }
+   return units;
+}
+
+
+/**
+ *      Code units for a char.  A surrogate pair counts entirely against
+ *      its high half, so the low half maps to the same column.
+ **/
+
+private int getUnitCount(char c)
+{
+   if (Character.isLowSurrogate(c)) return 0;
+   if (!use_utf8) return 1;
+   if (c < 0x80) return 1;
+   if (c < 0x800) return 2;
+   if (Character.isHighSurrogate(c)) return 4;
+   return 3;
+}
+
+
+
+}       // end of class LspBaseColumnMap
+
+
+
+
+/* end of LspBaseColumnMap.java */
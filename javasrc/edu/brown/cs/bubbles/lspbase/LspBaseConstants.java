@@ -57,6 +57,7 @@ interface LspBaseConstants
 String LSPBASE_MINT_NAME = "BUBBLES_" + System.getProperty("user.name").replace(" ","_");
 
 String PROJECT_DATA_FILE = ".lspproject";
+String SYMBOL_INDEX_FILE = ".lspsymbols";
 
 /********************************************************************************/
 /*										*/
@@ -96,6 +97,10 @@ interface LspAnyResponder extends LspResponder {
    void handleResponse(Object body);
 }
 
+interface LspTokenResponder extends LspResponder {
+   void handleResponse(int [] data);
+}
+
 
 
 interface LspNamer {
@@ -112,6 +117,8 @@ interface LspNamer {
 int LSPBASE_CORE_POOL_SIZE = 2;
 int LSPBASE_MAX_POOL_SIZE = 16;
 long LSPBASE_POOL_KEEP_ALIVE_TIME = 2*60*1000;
+int LSPBASE_DISPATCH_WORKERS = 4;
+int LSPBASE_OUTPUT_QUEUE_SIZE = 256;
 
 
 
@@ -273,6 +273,14 @@ LspBaseDebugProtocol getDebugProtocol(LspBaseDebugTarget tgt)
 
 
 
+List<LspBaseDebugProtocol> getAllDebugProtocols()
+{
+   synchronized (debug_protocols) {
+      return new ArrayList<>(debug_protocols.values());
+    }
+}
+
+
 void removeDebugProtocol(LspBaseDebugTarget tgt)
 {
    synchronized (debug_protocols) {
@@ -936,7 +944,7 @@ private class BreakpointsSet implements LspJsonResponder {
 	 for (int i = 0; i < break_points.size(); ++i) {
 	    JSONObject jdata = bpts.getJSONObject(i);
 	    LspBaseBreakpoint bp = break_points.get(i);
-	    LspLog.logD("Debug: SET BREAK DATA " + bp + " " + jdata.toString(2));
+	    LspLog.logD(() -> "Debug: SET BREAK DATA " + bp + " " + jdata.toString(2));
 	    bp.setProtoInfo(jdata);
 	    if (bp.getExternalId() > 0) {
 	       break_ids.put(bp.getExternalId(),bp);
@@ -35,15 +35,15 @@
 
 package edu.brown.cs.bubbles.lspbase;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -72,12 +72,12 @@ enum InitState {
 };
 
 private LspBaseDebugTarget debug_target;
-private Map<Integer,LspJsonResponder> pending_map;
-private Map<Integer,String> error_map;
+private Map<Integer,PendingRequest> pending_map;
 private String client_id;
 private InitState init_state;
 private LspBaseLanguageData for_language;
-private Writer message_stream;
+private LspBaseMessageWriter message_stream;
+private LspBaseStatistics debug_statistics;
 private JSONObject config_data;
 private LspBaseDebugManager debug_manager;
 
@@ -95,13 +95,13 @@ LspBaseDebugProtocol(LspBaseDebugManager mgr,LspBaseDebugTarget tgt,LspBaseLangu
 {
    debug_manager = mgr;
    debug_target = tgt;
-   pending_map = new HashMap<>();
-   error_map = new HashMap<>();
+   pending_map = new ConcurrentHashMap<>();
    for_language = ld;
    config_data = for_language.getDebugConfiguration();
 
    String nm = LspBaseMain.getLspMain().getWorkSpaceDirectory().getName();
    client_id = ld.getName() + "_LSP_" + nm;
+   debug_statistics = new LspBaseStatistics(client_id);
 
    String command = ld.getDapExecString();
    if (command == null) return;
@@ -114,7 +114,9 @@ LspBaseDebugProtocol(LspBaseDebugManager mgr,LspBaseDebugTarget tgt,LspBaseLangu
       IvyExec exec = new IvyExec(command,IvyExec.PROVIDE_INPUT | IvyExec.READ_OUTPUT | IvyExec.READ_ERROR);
       InputStream rdr = exec.getInputStream();
       InputStream err = exec.getErrorStream();
-      message_stream = new OutputStreamWriter(exec.getOutputStream());
+      int qsz = ld.getCapabilityInt("lsp.output.queueSize",LSPBASE_OUTPUT_QUEUE_SIZE);
+      message_stream = new LspBaseMessageWriter(client_id,exec.getOutputStream(),null,qsz,
+            debug_statistics);
       MessageReader mr = new MessageReader(rdr);
       mr.start();
       ErrorReader er = new ErrorReader(err);
@@ -221,7 +223,7 @@ private void handleInit(JSONObject caps)
 {
    for_language.setCapabilities("debug",caps);
 
-   LspLog.logD("DEBUG: Received capabilities " + caps.toString(2));
+   LspLog.logD(() -> "DEBUG: Received capabilities " + caps.toString(2));
 
    init_state = InitState.INIT_RECEIVED;
 }
@@ -319,8 +321,26 @@ void sendJsonRequest(String method,LspJsonResponder resp,JSONObject params)
 
 
 
+CompletableFuture<JSONObject> sendRequestAsync(String method,LspJsonResponder resp,Object ... params)
+{
+   JSONObject obj = createJson(params);
+
+   waitForInitialization();
+
+   return localSendRequestAsync(method,resp,obj);
+}
+
+
 private void localSendRequest(String method,LspJsonResponder resp,JSONObject params)
    throws LspBaseException
+{
+   CompletableFuture<JSONObject> fut = localSendRequestAsync(method,resp,params);
+   waitForReply(fut);
+}
+
+
+private CompletableFuture<JSONObject> localSendRequestAsync(String method,LspJsonResponder resp,
+      JSONObject params)
 {
    int id = id_counter.getAndIncrement();
    JSONObject jo = new JSONObject();
@@ -329,44 +349,43 @@ private void localSendRequest(String method,LspJsonResponder resp,JSONObject par
    jo.put("command",method);
    if (params != null) jo.put("arguments",params);
 
-   String cnts = jo.toString();
-   int len = cnts.length();
-   StringBuffer buf = new StringBuffer();
-   buf.append("Content-Length: ");
-   buf.append(len);
-   buf.append("\r\n");
-   buf.append("\r\n");
-   buf.append(cnts);
-
-   LspLog.logD("DEBUG: Send " + id + " " + method + " " + len + " " + jo.toString(2));
+   LspLog.logD(() -> "DEBUG: Send " + id + " " + method + " " + jo.toString(2));
 
    if (resp == null) resp = this::dummyHandler;
 
-   pending_map.put(id,resp);
+   CompletableFuture<JSONObject> fut = new CompletableFuture<>();
+   long start = debug_statistics.startRequest(method);
+   pending_map.put(id,new PendingRequest(method,resp,fut,start));
 
-   synchronized (message_stream) {
-      try{
-	 message_stream.write(buf.toString());
-	 message_stream.flush();
-       }
-      catch (IOException e) {
-	 LspLog.logE("DEBUG: Problem writing message",e);
-       }
-    }
+   message_stream.queueMessage(jo);
 
-   String err = null;
-   synchronized(this) {
-      while (pending_map.containsKey(id)) {
-	 try {
-	    wait(5000);
-	  }
-	 catch (InterruptedException e) { }
+   return fut;
+}
+
+
+LspBaseStatistics getStatistics()               { return debug_statistics; }
+
+
+int getOutputQueueDepth()
+{
+   if (message_stream == null) return 0;
+   return message_stream.getQueueDepth();
+}
+
+
+JSONObject waitForReply(CompletableFuture<JSONObject> fut) throws LspBaseException
+{
+   for ( ; ; ) {
+      try {
+	 return fut.get();
+       }
+      catch (InterruptedException e) { }
+      catch (ExecutionException e) {
+	 Throwable t = e.getCause();
+	 if (t instanceof LspBaseException) throw (LspBaseException) t;
+	 throw new LspBaseException("Problem with debug request",t);
        }
     }
-   err = error_map.remove(id);
-   if (err != null && err.equals("")) err = null;
-
-   if (err != null) throw new LspBaseException(err);
 }
 
 
@@ -387,26 +406,9 @@ private void sendResponse(int seq,String cmd,JSONObject resp,String error)
    if (error != null) jo.put("message",error);
    if (resp != null) jo.put("body",resp);
 
-   String cnts = jo.toString();
-   int len = cnts.length();
-   StringBuffer buf = new StringBuffer();
-   buf.append("Content-Length: ");
-   buf.append(len);
-   buf.append("\r\n");
-   buf.append("\r\n");
-   buf.append(cnts);
-
-   LspLog.logD("DEBUG: Response " + seq + " " + cmd + " " + len + " " + jo.toString(2));
-
-   synchronized (message_stream) {
-      try{
-	 message_stream.write(buf.toString());
-	 message_stream.flush();
-       }
-      catch (IOException e) {
-	 LspLog.logE("DEBUG: Problem writing response message",e);
-       }
-    }
+   LspLog.logD(() -> "DEBUG: Response " + seq + " " + cmd + " " + jo.toString(2));
+
+   message_stream.queueMessage(jo);
 }
 
 
@@ -426,31 +428,30 @@ private void dummyHandler(JSONObject obj)		{ }
 void processResponse(JSONObject resp)
 {
    int id = resp.optInt("request_seq");
-   LspJsonResponder lsp = pending_map.get(id);
-   LspLog.logD("DEBUG: Reply " + id + " " + (lsp != null) + " " + resp.toString(2));
+   PendingRequest pr = pending_map.remove(id);
+   LspLog.logD(() -> "DEBUG: Reply " + id + " " + (pr != null) + " " + resp.toString(2));
+   if (pr == null) return;
 
+   JSONObject cnts = null;
+   Throwable fail = null;
    try {
       if (resp.optBoolean("success")) {
-	 JSONObject cnts = resp.optJSONObject("body");
-	 if (lsp != null) {
-	    lsp.handleResponse(cnts);
-	  }
+	 cnts = resp.optJSONObject("body");
+	 pr.getResponder().handleResponse(cnts);
        }
       else {
 	String msg = resp.optString("error");
 	if (msg == null) msg = resp.optString("message");
 	if (msg == null) msg = "Debug protocol error";
-	error_map.put(id,msg);
+	fail = new LspBaseException(msg);
        }
     }
    catch (Throwable t) {
       LspLog.logE("DEBUG: Problem processing debug response",t);
     }
    finally {
-      synchronized (this) {
-	 pending_map.remove(id);
-	 notifyAll();
-       }
+      if (fail != null) pr.getFuture().completeExceptionally(fail);
+      else pr.getFuture().complete(cnts);
     }
 }
 
@@ -552,67 +553,50 @@ void processEvent(JSONObject resp)
 
 private class MessageReader extends Thread {
 
-   private BufferedInputStream message_input;
+   private LspBaseFrameDecoder frame_decoder;
 
    MessageReader(InputStream input) {
       super("LSP_Debug_Message_Reader_" + client_id);
-      message_input = new BufferedInputStream(input);
+      frame_decoder = new LspBaseFrameDecoder(input);
     }
 
    @Override public void run() {
-      int clen = -1;
       for ( ; ; ) {
 	 try {
-	    String ln = readline();
-	    if (ln == null) break;
-	    LspLog.logD("DEBUG: Read line: " + ln);
-	    if (ln.length() == 0) {
-	       if (clen > 0) {
-		  byte [] buf = new byte[clen];
-		  int rln = 0;
-		  while (rln < clen) {
-		     int mln = message_input.read(buf,rln,clen-rln);
-		     rln += mln;
-		   }
-		  String rslt = new String(buf,0,rln);
-		  JSONObject jobj = new JSONObject(rslt);
-		  LspLog.logD("DEBUG: Received " + clen + " " + rln + "::\n" + jobj.toString(2));
-		  process(jobj);
-		  clen = -1;
-		}
-	     }
-	    else {
-	       int idx = ln.indexOf(":");
-	       if (idx >= 0) {
-		  int idx1 = ln.lastIndexOf("\n",idx) + 1;
-		  String key = ln.substring(idx1,idx).trim();
-		  String val = ln.substring(idx+1).trim();
-		  if (key.equalsIgnoreCase("Content-Length")) {
-		     clen = Integer.parseInt(val);
-		   }
-		}
-	     }
+	    if (!frame_decoder.nextFrame()) break;
+	    JSONObject jobj = frame_decoder.parseBody();
+	    LspLog.logD(() -> "DEBUG: Received " + frame_decoder.getBodyLength() + "::\n" + jobj.toString(2));
+	    noteMessage(jobj,frame_decoder.getBodyLength());
+	    process(jobj);
 	  }
 	 catch (IOException e) {
 	    LspLog.logE("DEBUG: Problem reading debug message",e);
+	    break;
+	  }
+	 catch (Throwable t) {
+	    LspLog.logE("DEBUG: Problem decoding debug message",t);
 	  }
        }
       LspLog.logI("DEBUG: message reader exited");
     }
 
-   String readline() throws IOException {
-      byte [] buf = new byte[100000];
-      int ln = 0;
-      int lastb = 0;
-      for ( ; ; ) {
-	 int b = message_input.read();
-	 if (b == -1) return null;
-	 if (b == '\n' && lastb == '\r') break;
-	 buf[ln++] = (byte) b;
-	 lastb = b;
+   private void noteMessage(JSONObject msg,int len) {
+      String type = msg.optString("type");
+      if (type.equals("response")) {
+         PendingRequest pr = pending_map.get(msg.optInt("request_seq"));
+         String cmd = (pr == null ? msg.optString("command") : pr.getMethod());
+         debug_statistics.noteBytesIn(cmd,len);
+         if (pr != null) {
+            boolean err = !msg.optBoolean("success");
+            debug_statistics.finishRequest(cmd,pr.getStartTime(),err);
+          }
+       }
+      else {
+         String what = msg.optString("command",null);
+         if (type.equals("event")) what = "event/" + msg.optString("event");
+         debug_statistics.noteIncoming(what);
+         debug_statistics.noteBytesIn(what,len);
        }
-      if (ln > 0 && buf[ln-1] == '\r') --ln;
-      return new String(buf,0,ln);
     }
 
    void process(JSONObject reply) {
@@ -643,7 +627,7 @@ class MessageProcessor implements Runnable {
     }
 
    @Override public void run() {
-      LspLog.logD("Debug process " + json_message.toString(2));
+      LspLog.logD(() -> "Debug process " + json_message.toString(2));
 
       String type = json_message.getString("type");
       switch (type) {
@@ -669,6 +653,36 @@ class MessageProcessor implements Runnable {
 
 
 
+/********************************************************************************/
+/*										*/
+/*	Pending request information						*/
+/*										*/
+/********************************************************************************/
+
+private static class PendingRequest {
+
+   private String request_method;
+   private LspJsonResponder request_responder;
+   private CompletableFuture<JSONObject> request_future;
+   private long start_time;
+
+   PendingRequest(String method,LspJsonResponder resp,CompletableFuture<JSONObject> fut,
+         long start) {
+      request_method = method;
+      request_responder = resp;
+      request_future = fut;
+      start_time = start;
+    }
+
+   String getMethod()				{ return request_method; }
+   LspJsonResponder getResponder()		{ return request_responder; }
+   CompletableFuture<JSONObject> getFuture()	{ return request_future; }
+   long getStartTime()				{ return start_time; }
+
+}	// end of inner class PendingRequest
+
+
+
 private class ErrorReader extends Thread {
 
    private BufferedReader input_reader;
@@ -25,6 +25,7 @@ package edu.brown.cs.bubbles.lspbase;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -165,28 +166,51 @@ void addScopes(JSONArray scopes)
 
 void loadVariables(int depth)
 {
-   if (frame_scopes == null) return;
+   loadVariablesAsync(depth).join();
+}
+
+
+/**
+ *      Request the variables for all scopes at once.  The returned future
+ *      completes once all replies are in; variables are added in scope
+ *      order regardless of the order in which the replies arrive.
+ **/
+
+CompletableFuture<Void> loadVariablesAsync(int depth)
+{
+   if (frame_scopes == null) return CompletableFuture.completedFuture(null);
    
-   frame_variables = new ArrayList<>();
+   List<LspBaseDebugVariable> vars = new ArrayList<>();
    
    LspBaseDebugProtocol proto = for_thread.getProtocol();
    
+   List<Object> items = new ArrayList<>();
+   List<CompletableFuture<JSONObject>> futs = new ArrayList<>();
    for (LspBaseDebugScope sd : frame_scopes) {
       String dnm = sd.getDelayName();
       if (dnm != null) {
-         LspBaseDebugVariable vd = new LspBaseDebugVariable(dnm,sd);
-         frame_variables.add(vd);
+         items.add(new LspBaseDebugVariable(dnm,sd));
        }
       else {
-         try {
-            proto.sendRequest("variables",new VariableLoader(sd),
-                  "variablesReference",sd.getReferenceNumber());
-          }
-         catch (LspBaseException e) {
-            LspLog.logE("DEBUG problem loading variables",e);
-          }
+         VariableLoader vl = new VariableLoader(sd);
+         items.add(vl);
+         CompletableFuture<JSONObject> fut = proto.sendRequestAsync("variables",vl,
+               "variablesReference",sd.getReferenceNumber());
+         futs.add(fut.exceptionally((Throwable t) -> {
+            LspLog.logE("DEBUG problem loading variables",t);
+            return null;
+          }));
        }
     }
+   
+   CompletableFuture<Void> all = CompletableFuture.allOf(futs.toArray(new CompletableFuture<?>[0]));
+   return all.thenRun(() -> {
+      for (Object o : items) {
+         if (o instanceof LspBaseDebugVariable) vars.add((LspBaseDebugVariable) o);
+         else vars.addAll(((VariableLoader) o).getVariables());
+       }
+      frame_variables = vars;
+    });
 }
 
 
@@ -194,19 +218,22 @@ void loadVariables(int depth)
 private class VariableLoader implements LspJsonResponder {
    
    private LspBaseDebugScope scope_data;
+   private List<LspBaseDebugVariable> scope_vars;
    
    VariableLoader(LspBaseDebugScope sd) { 
       scope_data = sd;
+      scope_vars = new ArrayList<>();
     }
    
+   List<LspBaseDebugVariable> getVariables()    { return scope_vars; }
+   
    @Override public void handleResponse(JSONObject body) {
       JSONArray vars = body.getJSONArray("variables");
       for (int i = 0; i < vars.length(); ++i) {
          JSONObject var = vars.getJSONObject(i);
          LspBaseDebugVariable vd = new LspBaseDebugVariable(var,scope_data);
-         frame_variables.add(vd);
+         scope_vars.add(vd);
        }
-    
     }
    
 }       // end of inner class VariableLoader
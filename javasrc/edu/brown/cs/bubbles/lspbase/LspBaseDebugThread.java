@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -128,19 +129,31 @@ List<LspBaseDebugStackFrame> getStackFrames()
          "threadId",getId(),"startFrame",0,
          "levels",0,"format",format);
    
-   // for each frame, do a scope command followed by variables
+   // for each frame, do a scope command followed by variables; the
+   // requests for all frames are outstanding at once
+   List<LspBaseDebugStackFrame> frms = new ArrayList<>();
+   List<CompletableFuture<JSONObject>> futs = new ArrayList<>();
    for (LspBaseDebugStackFrame frm : sf.getFrames()) {
       if (frm.getBaseFile() != null) {
-         try {
-            proto.sendRequest("scopes",new FrameScoper(frm),
-                  "frameId",frm.getId());
-            frm.loadVariables(1);
-          }
-         catch (LspBaseException e) {
-            LspLog.logE("DEBUG Problem gettting scopes",e);
-          }
+         frms.add(frm);
+         futs.add(proto.sendRequestAsync("scopes",new FrameScoper(frm),
+               "frameId",frm.getId()));
        }
     }
+   
+   List<CompletableFuture<Void>> vfuts = new ArrayList<>();
+   for (int i = 0; i < frms.size(); ++i) {
+      try {
+         proto.waitForReply(futs.get(i));
+         vfuts.add(frms.get(i).loadVariablesAsync(1));
+       }
+      catch (LspBaseException e) {
+         LspLog.logE("DEBUG Problem gettting scopes",e);
+       }
+    }
+   for (CompletableFuture<Void> vf : vfuts) {
+      vf.join();
+    }
  
    return sf.getFrames();
 }
@@ -0,0 +1,200 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseDispatcher.java                                          */
+/*                                                                              */
+/*      Ordered dispatch lanes for incoming server messages                     */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+
+class LspBaseDispatcher implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private String          dispatch_name;
+private Map<String,Lane> lane_map;
+private Queue<Lane>     ready_lanes;
+private int             active_workers;
+private int             max_workers;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LspBaseDispatcher(String name,int max)
+{
+   dispatch_name = name;
+   lane_map = new HashMap<>();
+   ready_lanes = new ArrayDeque<>();
+   active_workers = 0;
+   max_workers = Math.max(1,max);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Dispatch methods                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Run a task in the lane with the given key.  Tasks in the same lane
+ *      run one at a time in arrival order; different lanes run in parallel
+ *      on at most max workers.  A null key means the task is independent
+ *      and is started directly.
+ **/
+
+void dispatch(String key,Runnable task)
+{
+   LspBaseMain lsp = LspBaseMain.getLspMain();
+
+   if (key == null) {
+      lsp.startTask(task);
+      return;
+    }
+
+   boolean start = false;
+   synchronized (this) {
+      Lane lane = lane_map.get(key);
+      if (lane == null) {
+         lane = new Lane(key);
+         lane_map.put(key,lane);
+       }
+      lane.addTask(task);
+      if (!lane.isScheduled()) {
+         lane.setScheduled(true);
+         ready_lanes.add(lane);
+       }
+      if (active_workers < max_workers) {
+         ++active_workers;
+         start = true;
+       }
+    }
+
+   if (start) lsp.startTask(new Worker());
+}
+
+
+synchronized int getLaneCount()
+{
+   return lane_map.size();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Lane                                                                    */
+/*                                                                              */
+/********************************************************************************/
+
+private static class Lane {
+
+   private String lane_key;
+   private Queue<Runnable> lane_tasks;
+   private boolean is_scheduled;
+
+   Lane(String key) {
+      lane_key = key;
+      lane_tasks = new ArrayDeque<>();
+      is_scheduled = false;
+    }
+
+   String getKey()                              { return lane_key; }
+   boolean isScheduled()                        { return is_scheduled; }
+   void setScheduled(boolean fg)                { is_scheduled = fg; }
+   void addTask(Runnable r)                     { lane_tasks.add(r); }
+   Runnable nextTask()                          { return lane_tasks.poll(); }
+   boolean isEmpty()                            { return lane_tasks.isEmpty(); }
+
+}       // end of inner class Lane
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Worker to drain lanes                                                   */
+/*                                                                              */
+/********************************************************************************/
+
+private class Worker implements Runnable {
+
+   @Override public void run() {
+      for ( ; ; ) {
+         Lane lane = null;
+         Runnable task = null;
+         synchronized (LspBaseDispatcher.this) {
+            lane = ready_lanes.poll();
+            if (lane == null) {
+               --active_workers;
+               return;
+             }
+            task = lane.nextTask();
+          }
+
+         try {
+            if (task != null) task.run();
+          }
+         catch (Throwable t) {
+            LspLog.logE("Problem dispatching message for " + lane.getKey(),t);
+          }
+
+         synchronized (LspBaseDispatcher.this) {
+            if (lane.isEmpty()) {
+               lane.setScheduled(false);
+               lane_map.remove(lane.getKey());
+             }
+            else {
+               // go to the back so other lanes get a turn
+               ready_lanes.add(lane);
+             }
+          }
+       }
+    }
+
+   @Override public String toString() {
+      return "Dispatch_" + dispatch_name;
+    }
+
+}       // end of inner class Worker
+
+
+
+}       // end of class LspBaseDispatcher
+
+
+
+
+/* end of LspBaseDispatcher.java */
@@ -0,0 +1,520 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseDocument.java                                            */
+/*                                                                              */
+/*      Immutable snapshot of file text stored as a balanced rope               */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.text.Segment;
+
+/**
+ *      A document is never changed; insert and remove return a new document
+ *      that shares all untouched parts of the tree with the old one, so a
+ *      reader holding a snapshot sees a consistent version while edits go
+ *      on.  Like GapContent, the content ends with an implied newline.
+ **/
+
+class LspBaseDocument implements LspBaseConstants, CharSequence
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private Node            root_node;
+private int             doc_version;
+
+private static final int LEAF_MAX = 2048;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+static LspBaseDocument create(CharSequence text)
+{
+   StringBuilder buf = new StringBuilder(text.length()+1);
+   buf.append(text);
+   buf.append('\n');
+
+   return new LspBaseDocument(build(buf,0,buf.length()),0);
+}
+
+
+private LspBaseDocument(Node root,int version)
+{
+   root_node = root;
+   doc_version = version;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+int getVersion()                                { return doc_version; }
+
+@Override public int length()                   { return root_node.length(); }
+
+
+@Override public char charAt(int idx)
+{
+   if (idx < 0 || idx >= length()) throw new IndexOutOfBoundsException("Offset " + idx);
+
+   Node n = root_node;
+   while (n instanceof Concat) {
+      Concat c = (Concat) n;
+      int llen = c.getLeft().length();
+      if (idx < llen) n = c.getLeft();
+      else {
+         idx -= llen;
+         n = c.getRight();
+       }
+    }
+
+   return ((Leaf) n).charAt(idx);
+}
+
+
+@Override public CharSequence subSequence(int start,int end)
+{
+   return getText(start,end-start);
+}
+
+
+String getText(int off,int len)
+{
+   checkRange(off,len);
+
+   StringBuilder buf = new StringBuilder(len);
+   root_node.append(buf,off,off+len);
+   return buf.toString();
+}
+
+
+/**
+ *      Fill a segment with a copy of the given range.
+ **/
+
+Segment getSegment(int off,int len,Segment seg)
+{
+   checkRange(off,len);
+
+   if (seg == null) seg = new Segment();
+   char [] chars = new char[len];
+   root_node.getChars(chars,0,off,off+len);
+   seg.array = chars;
+   seg.offset = 0;
+   seg.count = len;
+
+   return seg;
+}
+
+
+/**
+ *      Copy a range into the start of the given array.
+ **/
+
+void getChars(int off,int len,char [] dst)
+{
+   checkRange(off,len);
+
+   root_node.getChars(dst,0,off,off+len);
+}
+
+
+@Override public String toString()
+{
+   return getText(0,length());
+}
+
+
+private void checkRange(int off,int len)
+{
+   if (off < 0 || len < 0 || off + len > length()) {
+      throw new IndexOutOfBoundsException("Range " + off + ":" + len + " of " + length());
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Editing methods -- each returns a new document                         */
+/*                                                                              */
+/********************************************************************************/
+
+LspBaseDocument insert(int off,CharSequence text)
+{
+   if (text == null || text.length() == 0) return this;
+   if (off < 0 || off > length()) throw new IndexOutOfBoundsException("Insert at " + off);
+
+   Node mid = build(text,0,text.length());
+   Node [] parts = split(root_node,off);
+   Node rslt = join(join(parts[0],mid),parts[1]);
+
+   return new LspBaseDocument(rslt,doc_version);
+}
+
+
+LspBaseDocument remove(int off,int len)
+{
+   if (len == 0) return this;
+   checkRange(off,len);
+
+   Node [] p1 = split(root_node,off);
+   Node [] p2 = split(p1[1],len);
+   Node rslt = join(p1[0],p2[1]);
+
+   return new LspBaseDocument(rslt,doc_version);
+}
+
+
+LspBaseDocument setVersion(int version)
+{
+   if (version == doc_version) return this;
+
+   return new LspBaseDocument(root_node,version);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Tree operations                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private static Node build(CharSequence text,int start,int end)
+{
+   int len = end - start;
+   if (len <= LEAF_MAX) {
+      char [] chars = new char[len];
+      for (int i = 0; i < len; ++i) chars[i] = text.charAt(start+i);
+      return new Leaf(chars);
+    }
+
+   int nleaf = (len + LEAF_MAX - 1) / LEAF_MAX;
+   int mid = start + (nleaf / 2) * LEAF_MAX;
+   return new Concat(build(text,start,mid),build(text,mid,end));
+}
+
+
+private static Node buildLeaves(List<Leaf> leaves,int from,int to)
+{
+   if (to - from == 1) return leaves.get(from);
+
+   int mid = (from + to) >>> 1;
+   return new Concat(buildLeaves(leaves,from,mid),buildLeaves(leaves,mid,to));
+}
+
+
+/**
+ *      Split a tree at an offset, returning the two halves (either may be
+ *      null).  Only the nodes along the path are copied.
+ **/
+
+private static Node [] split(Node n,int off)
+{
+   Node [] rslt = new Node[2];
+   if (n == null) return rslt;
+
+   if (off <= 0) {
+      rslt[1] = n;
+      return rslt;
+    }
+   if (off >= n.length()) {
+      rslt[0] = n;
+      return rslt;
+    }
+
+   if (n instanceof Leaf) {
+      Leaf lf = (Leaf) n;
+      rslt[0] = lf.slice(0,off);
+      rslt[1] = lf.slice(off,lf.length());
+      return rslt;
+    }
+
+   Concat c = (Concat) n;
+   int llen = c.getLeft().length();
+   if (off < llen) {
+      Node [] sub = split(c.getLeft(),off);
+      rslt[0] = sub[0];
+      rslt[1] = join(sub[1],c.getRight());
+    }
+   else {
+      Node [] sub = split(c.getRight(),off - llen);
+      rslt[0] = join(c.getLeft(),sub[0]);
+      rslt[1] = sub[1];
+    }
+
+   return rslt;
+}
+
+
+/**
+ *      Concatenate two trees keeping the result height balanced.  Small
+ *      neighboring leaves are merged so that typing does not fragment
+ *      the tree.
+ **/
+
+private static Node join(Node a,Node b)
+{
+   if (a == null || a.length() == 0) return (b == null ? new Leaf(new char[0]) : b);
+   if (b == null || b.length() == 0) return a;
+
+   int ha = a.height();
+   int hb = b.height();
+
+   if (ha > hb + 1) {
+      Concat ca = (Concat) a;
+      return balance(ca.getLeft(),join(ca.getRight(),b));
+    }
+   if (hb > ha + 1) {
+      Concat cb = (Concat) b;
+      return balance(join(a,cb.getLeft()),cb.getRight());
+    }
+
+   return mergeOrConcat(a,b);
+}
+
+
+private static Node mergeOrConcat(Node a,Node b)
+{
+   if (a instanceof Leaf && b instanceof Leaf && a.length() + b.length() <= LEAF_MAX) {
+      return Leaf.merge((Leaf) a,(Leaf) b);
+    }
+   if (a instanceof Concat && b instanceof Leaf) {
+      // merge into the rightmost leaf of a when possible
+      Concat ca = (Concat) a;
+      Node r = ca.getRight();
+      if (r instanceof Leaf && r.length() + b.length() <= LEAF_MAX) {
+         return new Concat(ca.getLeft(),Leaf.merge((Leaf) r,(Leaf) b));
+       }
+    }
+   if (b instanceof Concat && a instanceof Leaf) {
+      Concat cb = (Concat) b;
+      Node l = cb.getLeft();
+      if (l instanceof Leaf && a.length() + l.length() <= LEAF_MAX) {
+         return new Concat(Leaf.merge((Leaf) a,(Leaf) l),cb.getRight());
+       }
+    }
+
+   return new Concat(a,b);
+}
+
+
+private static Node balance(Node l,Node r)
+{
+   int hl = l.height();
+   int hr = r.height();
+
+   if (hl > hr + 1) {
+      Concat cl = (Concat) l;
+      if (cl.getLeft().height() >= cl.getRight().height()) {
+         return new Concat(cl.getLeft(),new Concat(cl.getRight(),r));
+       }
+      Concat clr = (Concat) cl.getRight();
+      return new Concat(new Concat(cl.getLeft(),clr.getLeft()),
+            new Concat(clr.getRight(),r));
+    }
+   if (hr > hl + 1) {
+      Concat cr = (Concat) r;
+      if (cr.getRight().height() >= cr.getLeft().height()) {
+         return new Concat(new Concat(l,cr.getLeft()),cr.getRight());
+       }
+      Concat crl = (Concat) cr.getLeft();
+      return new Concat(new Concat(l,crl.getLeft()),
+            new Concat(crl.getRight(),cr.getRight()));
+    }
+
+   return mergeOrConcat(l,r);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Builder for text that arrives in pieces                                 */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Fills full leaves directly from the pieces as they are decoded, so
+ *      loading a file does not need an intermediate string.
+ **/
+
+static class Builder {
+
+   private List<Leaf> leaf_list;
+   private char [] leaf_buf;
+   private int leaf_len;
+
+   Builder() {
+      leaf_list = new ArrayList<>();
+      leaf_buf = new char[LEAF_MAX];
+      leaf_len = 0;
+    }
+
+   void append(char [] buf,int off,int len) {
+      while (len > 0) {
+         int ct = Math.min(len,LEAF_MAX - leaf_len);
+         System.arraycopy(buf,off,leaf_buf,leaf_len,ct);
+         leaf_len += ct;
+         off += ct;
+         len -= ct;
+         if (leaf_len == LEAF_MAX) {
+            leaf_list.add(new Leaf(leaf_buf));
+            leaf_buf = new char[LEAF_MAX];
+            leaf_len = 0;
+          }
+       }
+    }
+
+   LspBaseDocument build() {
+      append(new char [] { '\n' },0,1);
+      if (leaf_len > 0 || leaf_list.isEmpty()) {
+         char [] last = new char[leaf_len];
+         System.arraycopy(leaf_buf,0,last,0,leaf_len);
+         leaf_list.add(new Leaf(last));
+       }
+      Node root = buildLeaves(leaf_list,0,leaf_list.size());
+      leaf_list = null;
+      leaf_buf = null;
+      return new LspBaseDocument(root,0);
+    }
+
+}       // end of inner class Builder
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Tree nodes                                                              */
+/*                                                                              */
+/********************************************************************************/
+
+private abstract static class Node {
+
+   abstract int length();
+   abstract int height();
+   abstract void append(StringBuilder buf,int start,int end);
+   abstract void getChars(char [] dst,int dpos,int start,int end);
+
+}       // end of inner class Node
+
+
+
+private static class Leaf extends Node {
+
+   private char [] leaf_chars;
+
+   Leaf(char [] chars) {
+      leaf_chars = chars;
+    }
+
+   static Leaf merge(Leaf a,Leaf b) {
+      char [] chars = new char[a.length() + b.length()];
+      System.arraycopy(a.leaf_chars,0,chars,0,a.length());
+      System.arraycopy(b.leaf_chars,0,chars,a.length(),b.length());
+      return new Leaf(chars);
+    }
+
+   @Override int length()                       { return leaf_chars.length; }
+   @Override int height()                       { return 0; }
+
+   char charAt(int idx)                         { return leaf_chars[idx]; }
+
+   Leaf slice(int start,int end) {
+      char [] chars = new char[end-start];
+      System.arraycopy(leaf_chars,start,chars,0,end-start);
+      return new Leaf(chars);
+    }
+
+   @Override void append(StringBuilder buf,int start,int end) {
+      buf.append(leaf_chars,start,end-start);
+    }
+
+   @Override void getChars(char [] dst,int dpos,int start,int end) {
+      System.arraycopy(leaf_chars,start,dst,dpos,end-start);
+    }
+
+}       // end of inner class Leaf
+
+
+
+private static class Concat extends Node {
+
+   private Node left_node;
+   private Node right_node;
+   private int node_length;
+   private int node_height;
+
+   Concat(Node l,Node r) {
+      left_node = l;
+      right_node = r;
+      node_length = l.length() + r.length();
+      node_height = Math.max(l.height(),r.height()) + 1;
+    }
+
+   Node getLeft()                               { return left_node; }
+   Node getRight()                              { return right_node; }
+
+   @Override int length()                       { return node_length; }
+   @Override int height()                       { return node_height; }
+
+   @Override void append(StringBuilder buf,int start,int end) {
+      int llen = left_node.length();
+      if (start < llen) left_node.append(buf,start,Math.min(end,llen));
+      if (end > llen) right_node.append(buf,Math.max(start-llen,0),end-llen);
+    }
+
+   @Override void getChars(char [] dst,int dpos,int start,int end) {
+      int llen = left_node.length();
+      if (start < llen) {
+         int e = Math.min(end,llen);
+         left_node.getChars(dst,dpos,start,e);
+         dpos += e - start;
+       }
+      if (end > llen) right_node.getChars(dst,dpos,Math.max(start-llen,0),end-llen);
+    }
+
+}       // end of inner class Concat
+
+
+
+}       // end of class LspBaseDocument
+
+
+
+
+/* end of LspBaseDocument.java */
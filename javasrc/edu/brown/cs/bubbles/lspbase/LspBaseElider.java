@@ -42,6 +42,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 import javax.swing.text.Segment;
 
@@ -196,7 +197,8 @@ boolean computeElision(IvyXmlWriter xw) throws LspBaseException
       doing_elision = true;
       abort_elision = false;
       if (update_contents) {
-         file_contents = for_file.getSegment(0,for_file.getLength());
+         LspBaseDocument doc = for_file.getSnapshot();
+         file_contents = doc.getSegment(0,doc.length(),null);
        }
     }
    
@@ -209,37 +211,54 @@ boolean computeElision(IvyXmlWriter xw) throws LspBaseException
       if (abort_elision) return false;
       LspLog.logD("ELISION FOLDS");
       FoldResponder fr = new FoldResponder(data);
-      proto.sendWorkMessage("textDocument/foldingRange",fr,
+      CompletableFuture<Object> foldfut = proto.sendWorkAsync("textDocument/foldingRange",fr,
             "textDocument",for_file.getTextDocumentId());
       
+      // symbols are found while the server computes the folds
+      JSONArray syms = for_file.getSymbols();
+      proto.waitForReply(foldfut);
+      
       if (abort_elision) return false;
       LspLog.logD("ELISION DECLS");
-      handleDecls(data,for_file.getSymbols(),null);
+      handleDecls(data,syms,null);
 // proto.sendMessage("textDocument/documentSymbol",
 //       (Object resp,JSONObject err) -> handleDecls(data,resp,err),
 //       "textDocument",for_file.getTextDocumentId());
       
+      // request the tokens for all ranges at once, then process in order
       List<ElideRange> ranges = data.getRanges();
-      Segment textdata = null;
+      List<TokenResponder> trs = new ArrayList<>();
+      List<CompletableFuture<Object>> futs = new ArrayList<>();
       for (ElideRange range : ranges) {
          if (abort_elision) return false;
+         Segment textdata = null;
          if (scan_calls || scan_braces) {
             int start = range.getStartOffset();
             int end = range.getEndOffset();
-            if (end > for_file.getLength()) end = for_file.getLength(); 
-            textdata = for_file.getSegment(start,end-start);
+            LspBaseDocument doc = for_file.getSnapshot();
+            if (end > doc.length()) end = doc.length(); 
+            textdata = doc.getSegment(start,end-start,null);
           }
-         LspLog.logD("ELISION TOKENS");
-         TokenResponder tr = new TokenResponder(data,range,textdata);
-         proto.sendWorkMessage("textDocument/semanticTokens/range",tr,
+         TokenResponder tr = new TokenResponder(range,textdata);
+         trs.add(tr);
+         futs.add(proto.sendWorkAsync("textDocument/semanticTokens/range",tr,
                "textDocument",for_file.getTextDocumentId(),
                "range",proto.createRange(for_file,range.getStartOffset(),
-                     range.getEndOffset()));
+                     range.getEndOffset())));
+       }
+      
+      for (int i = 0; i < trs.size(); ++i) {
+         if (abort_elision) return false;
+         LspLog.logD("ELISION TOKENS");
+         proto.waitForReply(futs.get(i));
+         TokenResponder tr = trs.get(i);
+         ElideRange range = tr.getRange();
+         handleTokens(data,range,tr.getText(),tr.getTokens());
          
          if (abort_elision) return false;
          if (scan_braces) {
             LspLog.logD("ELISION BRACES");
-            scanBraces(data,range.getStartOffset(),range.getEndOffset(),textdata);
+            scanBraces(data,range.getStartOffset(),range.getEndOffset(),tr.getText());
           }
        }
       
@@ -276,21 +295,24 @@ private class FoldResponder implements LspArrayResponder {
 
 
 
-private class TokenResponder implements LspJsonResponder {
+private static class TokenResponder implements LspTokenResponder {
 
-   private ElideData elide_data;
    private ElideRange elide_range;
    private Segment text_data;
+   private int [] token_data;
    
-   TokenResponder(ElideData ed,ElideRange er,Segment td) {
-      elide_data = ed;
+   TokenResponder(ElideRange er,Segment td) {
       elide_range = er;
       text_data = td;
+      token_data = new int[0];
     }
    
-   @Override public void handleResponse(JSONObject robj) {
-      JSONArray data = robj.getJSONArray("data");
-      handleTokens(elide_data,elide_range,text_data,data);
+   ElideRange getRange()                        { return elide_range; }
+   Segment getText()                            { return text_data; }
+   int [] getTokens()                           { return token_data; }
+   
+   @Override public void handleResponse(int [] data) {
+      token_data = data;
     }
    
 }       // end of inner class TokenResponder
@@ -454,24 +476,24 @@ private int fixDeclStartOffset(int soff,String ntype)
 /*                                                                              */
 /********************************************************************************/
 
-void handleTokens(ElideData edata,ElideRange range,Segment textdata,JSONArray arr)
+void handleTokens(ElideData edata,ElideRange range,Segment textdata,int [] arr)
 {   
    int line = 0;
    int col = 0;
-   for (int i = 0; i < arr.length(); i += 5) {
+   for (int i = 0; i+4 < arr.length; i += 5) {
       if (abort_elision) return;
-      int dline = arr.getInt(i+0);
+      int dline = arr[i+0];
       line += dline;
       if (dline > 0) col = 0;
-      col += arr.getInt(i+1);
-      int len = arr.getInt(i+2);
+      col += arr[i+1];
+      int len = arr[i+2];
       int soff = for_file.mapLspLineCharToOffset(line,col);
-      int eoff = soff + len;
+      int eoff = for_file.mapLspLineCharToOffset(line,col+len);
       
       
-      String typ = token_types[arr.getInt(i+3)];
+      String typ = token_types[arr[i+3]];
       Set<String> modset = new HashSet<>();
-      int modbits = arr.getInt(i+4);
+      int modbits = arr[i+4];
       String mods = "";
       if (modbits != 0) {
          for (int j = 0; j < token_modifiers.length; ++j) {
@@ -481,7 +503,7 @@ void handleTokens(ElideData edata,ElideRange range,Segment textdata,JSONArray ar
              }
           }
        }
-      LspLog.logD("TOKEN " + line + " " + col + " " + len + " " + typ + " " + mods);
+      LspLog.logDF("TOKEN %d %d %d %s %s",line,col,len,typ,mods);
       
       if (!edata.isRelevant(soff,eoff)) continue;
       String st = getSymbolType(typ,modset);
@@ -23,21 +23,26 @@
 package edu.brown.cs.bubbles.lspbase;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 
-import javax.swing.text.BadLocationException;
-import javax.swing.text.GapContent;
 import javax.swing.text.Position;
 import javax.swing.text.Segment;
 
@@ -64,18 +69,42 @@ private File for_file;
 private LspBaseProject for_project;
 private String file_language;
 private volatile int file_version;
-private LspBaseLineOffsets line_offsets;
-private GapContent file_contents;
+private volatile LspBaseLineOffsets line_offsets;
+private volatile LspBaseColumnMap column_map;
+private volatile LspBaseDocument file_contents;
 private boolean is_changed;
-private LspBaseElider file_elider;
-private JSONArray file_symbols;
+private volatile boolean is_dirty;
+private volatile long last_access;
+private volatile boolean server_open;
+private boolean must_open;
+private Object open_lock;
+private volatile LspBaseElider file_elider;
+private volatile JSONArray file_symbols;
+private volatile int symbol_generation;
+private volatile CompletableFuture<JSONArray> symbol_request;
+private volatile LspBaseSymbolRanges symbol_ranges;
+private volatile LspBaseSymbolRanges symbol_line_ranges;
+private volatile SymbolKeys symbol_keys;
+private volatile LspBaseSymbolShift symbol_shift;
+private Object symbol_lock;
+private ReentrantReadWriteLock file_lock;
 private Set<String> base_ids;
 private Map<String,PrivateBuffer> private_buffers;
 private String current_editor;
+private JSONArray pending_changes;
+private boolean flush_scheduled;
+private Object change_lock;
+private List<WeakReference<FilePosition>> file_positions;
+private Queue<BubbleEdit> bubble_edits;
+private boolean bubble_sending;
 
 private static String [] token_types;
 private static String [] token_modifiers;
 
+private static final String FILE_NEWLINE = "\n";
+
+// kinds that can own a text search match
+private static final long SEARCH_KINDS = LspBaseSymbolRanges.kindMask(1,2,5,6,9,10,11,12,23);
 
 
 
@@ -93,12 +122,34 @@ LspBaseFile(LspBaseProject proj,File f,String lang)
    file_language = lang;
    file_version = 0;
    line_offsets = null;
+   column_map = null;
    is_changed = false;
+   is_dirty = false;
+   last_access = 0;
    file_elider = null;
    file_symbols = null;
-   base_ids = new HashSet<>();
-   private_buffers = new HashMap<>();
-   if (proj.getLanguageData().getCapabilityBool("lsp.mustOpenFiles")) {
+   symbol_generation = 0;
+   symbol_request = null;
+   symbol_ranges = null;
+   symbol_line_ranges = null;
+   symbol_keys = null;
+   symbol_shift = null;
+   symbol_lock = new Object();
+   file_lock = new ReentrantReadWriteLock();
+   // read by the cache evictor and edit threads without the file lock
+   base_ids = ConcurrentHashMap.newKeySet();
+   private_buffers = new ConcurrentHashMap<>();
+   pending_changes = null;
+   flush_scheduled = false;
+   change_lock = new Object();
+   file_positions = new ArrayList<>();
+   bubble_edits = new ArrayDeque<>();
+   bubble_sending = false;
+   server_open = false;
+   open_lock = new Object();
+   must_open = proj.getLanguageData().getCapabilityBool("lsp.mustOpenFiles");
+   if (must_open && !proj.getWorkingSet().isBounded()) {
+      // with a bounded working set the file is opened on first use
       try {
          open(null,false);
        }
@@ -147,23 +198,40 @@ LspBaseProject getProject()	{ return for_project; }
 boolean hasChanged()		{ return is_changed; }
 int getTabSize()		{ return 8; }
 
-synchronized LspBaseElider getElider()
+LspBaseElider getElider()
 {
-   if (file_elider == null) {
-      file_elider = new LspBaseElider(this);
+   LspBaseElider el = file_elider;
+   if (el != null) return el;
+
+   synchronized (this) {
+      if (file_elider == null) {
+	 file_elider = new LspBaseElider(this);
+       }
+      return file_elider;
     }
-   return file_elider;
 }
 
 String getContents() {
-   loadContents();
-   try {
-      return file_contents.getString(0,file_contents.length());
-    }
-   catch (BadLocationException e) {
-      LspLog.logE("Problem getting file contents " + e);
-      return "";
+   return getSnapshot().toString();
+}
+
+
+/**
+ *      Current contents as an immutable snapshot tagged with its version.
+ *      It can be read without any locking while edits continue.  Reads
+ *      only stamp the access time; the cache itself is told about the
+ *      file at coarser points (loading, opening, editing, symbols).
+ **/
+
+LspBaseDocument getSnapshot()
+{
+   LspBaseDocument doc = file_contents;
+   if (doc != null) {
+      last_access = System.currentTimeMillis();
+      return doc;
     }
+
+   return loadContents();
 }
 
 
@@ -175,15 +243,13 @@ Segment getSegment(int off0,int len)
 
 Segment getSegment(int off0,int len,Segment seg)
 {
-   loadContents();
-   if (seg == null) seg = new Segment();
+   LspBaseDocument doc = getSnapshot();
    try {
-      file_contents.getChars(off0,len,seg);
-      return seg;
+      return doc.getSegment(off0,len,seg);
     }
-   catch (BadLocationException e) {
+   catch (IndexOutOfBoundsException e) {
       LspLog.logE("Bad segment get " + off0 + " " + len + " " +
-            file_contents.length(),e);
+            doc.length(),e);
     }
 
    return null;
@@ -193,40 +259,51 @@ Segment getSegment(int off0,int len,Segment seg)
 String getText(int off,int len)
 {
    try {
-      return file_contents.getString(off,len);
+      return getSnapshot().getText(off,len);
     }
-   catch (BadLocationException e) { }
+   catch (IndexOutOfBoundsException e) { }
    return null;
 }
 
 
-private synchronized void loadContents()
+/**
+ *      Load the document and its line offsets together in one pass over
+ *      the file.
+ **/
+
+private synchronized LspBaseDocument loadContents()
 {
    if (file_contents == null) {
+      LspBaseFileLoader ldr = null;
       try {
-	 String cnts = IvyFile.loadFile(for_file);
-	 GapContent gc = new GapContent(cnts.length()+1024);
-	 gc.insertString(0,cnts);
-	 file_contents = gc;
+	 ldr = LspBaseFileLoader.load(for_file,FILE_NEWLINE);
        }
       catch (Exception e) {
-	 file_contents = new GapContent();
+	 ldr = LspBaseFileLoader.empty(FILE_NEWLINE);
        }
+      line_offsets = ldr.getLineOffsets();
+      file_contents = ldr.getDocument().setVersion(file_version);
+      noteCacheAccess();
     }
+
+   return file_contents;
 }
 
 
 
 int getLength()
 {
-   if (file_contents == null) getContents();
-
-   return file_contents.length();
+   return getSnapshot().length();
 }
 
 
 JSONObject getTextDocumentItem()
 {
+   synchronized (change_lock) {
+      // the full text includes any changes not yet sent
+      pending_changes = null;
+    }
+
    if (file_version == 0) file_version = 1;
 
    JSONObject json = new JSONObject();
@@ -239,7 +316,26 @@ JSONObject getTextDocumentItem()
 }
 
 
+/**
+ *      Identifier used by any request that reads the document.  Pending
+ *      edits are sent first so the server sees the version named here.
+ **/
+
 JSONObject getTextDocumentId()
+{
+   ensureServerOpen();
+   flushChanges();
+
+   return getLocalDocumentId();
+}
+
+
+/**
+ *      Identifier for the document as the server last saw it, without
+ *      reopening it or noting a use.
+ **/
+
+JSONObject getLocalDocumentId()
 {
    JSONObject json = new JSONObject();
    json.put("uri",getUri());
@@ -256,24 +352,122 @@ JSONObject getTextDocumentId()
 /*										*/
 /********************************************************************************/
 
-synchronized void lockFile(String bid)
+/**
+ *      Edits and commits take the write side.  Operations that only need
+ *      a consistent view of the text and positions take the read side and
+ *      run together; they should not hold it across a server round trip.
+ *      The lock belongs to the calling thread, not to the bubble id: it
+ *      must be released by the thread that took it (callers use finally),
+ *      and only nested calls on that same thread re-enter it.
+ **/
+
+void lockFile(String bid)
 {
-   while (current_editor != null) {
-      try {
-	 wait(5000);
-       }
-      catch (InterruptedException e) { }
-    }
+   file_lock.writeLock().lock();
    current_editor = bid;
 }
 
-synchronized void unlockFile()
+void unlockFile()
+{
+   if (file_lock.getWriteHoldCount() == 1) current_editor = null;
+   file_lock.writeLock().unlock();
+}
+
+
+void lockRead()
+{
+   file_lock.readLock().lock();
+}
+
+void unlockRead()
 {
-   current_editor = null;
-   notifyAll();
+   file_lock.readLock().unlock();
 }
 
 
+/********************************************************************************/
+/*										*/
+/*	Memory management							*/
+/*										*/
+/********************************************************************************/
+
+long getLastAccess()				{ return last_access; }
+
+
+private void noteCacheAccess()
+{
+   last_access = System.currentTimeMillis();
+   for_project.getFileCache().noteAccess(this);
+}
+
+
+/**
+ *      Rough size in bytes of the data that evictCache would drop.
+ **/
+
+long getCacheSize()
+{
+   long sz = 0;
+   LspBaseDocument doc = file_contents;
+   if (doc != null) sz += 2L * doc.length();
+   LspBaseLineOffsets lo = line_offsets;
+   if (lo != null) sz += 48L * lo.getLineCount();
+   JSONArray syms = file_symbols;
+   if (syms != null) sz += 512L * syms.length();
+   return sz;
+}
+
+
+/**
+ *      A file is busy on the server while it has edits not yet sent or
+ *      requests that have not been answered; it should not be closed then.
+ **/
+
+boolean isBusyOnServer()
+{
+   synchronized (change_lock) {
+      if (pending_changes != null) return true;
+    }
+   return for_project.getProtocol().hasPendingRequests(getUri());
+}
+
+
+/**
+ *      A file is pinned while it has unsaved edits, is open in an editor,
+ *      has private buffers or is being edited.
+ **/
+
+boolean isPinned()
+{
+   if (is_dirty || file_lock.isWriteLocked()) return true;
+   if (!base_ids.isEmpty() || !private_buffers.isEmpty()) return true;
+   return false;
+}
+
+
+/**
+ *      Drop the contents, line offsets and symbols; they are reloaded the
+ *      next time they are used.  Returns false if the file is pinned.
+ **/
+
+synchronized boolean evictCache()
+{
+   if (isPinned()) return false;
+
+   file_contents = null;
+   line_offsets = null;
+   column_map = null;
+   file_symbols = null;
+   symbol_ranges = null;
+   symbol_line_ranges = null;
+   symbol_keys = null;
+   symbol_shift = null;
+
+   return true;
+}
+
+
+
 /********************************************************************************/
 /*										*/
 /*	Line -- Position mapping (line/char are 1-based)			*/
@@ -282,31 +476,37 @@ synchronized void unlockFile()
 
 int mapLspLineToOffset(int line)
 {
-   if (line_offsets == null) setupOffsets();
-
-   return line_offsets.findOffset(line+1);
+   return getLineOffsets().findOffset(line+1);
 }
 
 int mapLineToOffset(int line)
 {
-   if (line_offsets == null) setupOffsets();
-
-   return line_offsets.findOffset(line);
+   return getLineOffsets().findOffset(line);
 }
 
 
+/**
+ *      Map an LSP position, whose character is in the negotiated position
+ *      encoding, to an offset.
+ **/
+
 int mapLspLineCharToOffset(int line, int col)
 {
-   return mapLineCharToOffset(line+1,col+1);
+   LspBaseColumnMap cm = getColumnMap();
+   if (cm == null) return mapLineCharToOffset(line+1,col+1);
+
+   LspBaseLineOffsets lo = getLineOffsets();
+   int lstart = lo.findOffset(line+1);
+   int lend = lo.findOffset(line+2);
+
+   return lstart + cm.toCharColumn(line+1,lstart,lend,col);
 }
 
 
 
 int mapLineCharToOffset(int line,int cpos)
 {
-   if (line_offsets == null) setupOffsets();
-
-   int lstart = line_offsets.findOffset(line);
+   int lstart = getLineOffsets().findOffset(line);
 
    return lstart+cpos-1;
 }
@@ -370,56 +570,83 @@ int mapRangeToLineEndOffset(JSONObject range)
 
 int mapOffsetToLine(int offset)
 {
-   if (line_offsets == null) setupOffsets();
-
-   int line = line_offsets.findLine(offset);
-
-   return line;
+   return getLineOffsets().findLine(offset);
 }
 
 
 LineCol mapOffsetToLineColumn(int offset)
 {
-   if (line_offsets == null) setupOffsets();
-
-   int line = line_offsets.findLine(offset);
-   int lstart = line_offsets.findOffset(line);
+   LspBaseLineOffsets lo = getLineOffsets();
+   int line = lo.findLine(offset);
+   int lstart = lo.findOffset(line);
 
    return new LineCol(line,offset-lstart+1);
 }
 
 
+/**
+ *      Map an offset to an LSP line and character (0-based, in the
+ *      negotiated position encoding).
+ **/
+
 LineCol mapOffsetToLspLineColumn(int offset)
 {
-   if (line_offsets == null) setupOffsets();
+   LspBaseLineOffsets lo = getLineOffsets();
+   int line = lo.findLine(offset);
+   int lstart = lo.findOffset(line);
+   int col = offset - lstart;
 
-   int line = line_offsets.findLine(offset);
-   int lstart = line_offsets.findOffset(line);
+   LspBaseColumnMap cm = getColumnMap();
+   if (cm != null) col = cm.toLspColumn(line,lstart,lo.findOffset(line+1),col);
 
-   return new LineCol(line-1,offset-lstart);
+   return new LineCol(line-1,col);
 }
 
 
-private synchronized void setupOffsets()
+/**
+ *      Column map for the current contents, or null if LSP columns are
+ *      just char columns.
+ **/
+
+private LspBaseColumnMap getColumnMap()
+{
+   String enc = getLanguageData().getPositionEncoding();
+   if (enc.equals(LspBaseColumnMap.ENCODING_UTF16)) return null;
+
+   LspBaseDocument doc = getSnapshot();
+   LspBaseColumnMap cm = column_map;
+   if (cm == null || !cm.isFor(doc)) {
+      cm = LspBaseColumnMap.create(doc,enc);
+      column_map = cm;
+    }
+   return cm;
+}
+
+
+/**
+ *      Line offsets for the current contents.  These can be dropped by the
+ *      file cache at any time, so callers should use the returned value
+ *      rather than rereading the field.
+ **/
+
+private LspBaseLineOffsets getLineOffsets()
 {
-   String newline = "\n";
+   LspBaseLineOffsets lo = line_offsets;
+   if (lo != null) return lo;
 
+   return setupOffsets();
+}
+
+
+private synchronized LspBaseLineOffsets setupOffsets()
+{
    if (line_offsets == null) {
-      if (file_contents == null) {
-	 try {
-	    line_offsets = new LspBaseLineOffsets(newline,
-		  new FileReader(for_file));
-	  }
-	 catch (IOException e) {
-	    line_offsets = new LspBaseLineOffsets(newline,new StringReader(""));
-	  }
-       }
-      else {
-	 String cnts = getText(0,file_contents.length());
-	 line_offsets = new LspBaseLineOffsets(newline,
-	       new StringReader(cnts));
-       }
+      LspBaseDocument doc = file_contents;
+      if (doc == null) loadContents();
+      else line_offsets = LspBaseFileLoader.scanDocument(doc,FILE_NEWLINE);
     }
+
+   return line_offsets;
 }
 
 
@@ -430,82 +657,209 @@ private synchronized void setupOffsets()
 /*										*/
 /********************************************************************************/
 
-synchronized JSONArray getSymbols()
+JSONArray getSymbols()
 {
-   
-   if (file_symbols == null) {
+   return getSymbols(false);
+}
+
+
+/**
+ *	Get the symbols.  Unless exact is true, symbols from before recent
+ *	edits, with their ranges shifted by the edits, may be returned while
+ *	new ones are fetched in the background.
+ **/
+
+JSONArray getSymbols(boolean exact)
+{
+   JSONArray rslt = null;
+   if (!exact) rslt = getShiftedSymbols();
+   if (rslt != null) {
+      noteCacheAccess();
+      return rslt;
+    }
+
+   try {
+      rslt = (JSONArray) for_project.getProtocol().waitForReply(requestSymbols());
+    }
+   catch (LspBaseException e) {
+      LspLog.logE("Problem getting document symbols",e);
+    }
+   if (rslt == null) rslt = new JSONArray();
+   noteCacheAccess();
+   return rslt;
+}
+
+
+/**
+ *	Get the symbols without waiting.  The future always completes
+ *	normally, with empty symbols if the request fails.
+ **/
+
+CompletableFuture<JSONArray> getSymbolsAsync()
+{
+   return requestSymbols().thenApply((syms) -> {
+      noteCacheAccess();
+      return syms;
+    });
+}
+
+
+/**
+ *      Symbols are fetched under their own lock, so a slow documentSymbol
+ *      request only holds up other requests for symbols, and concurrent
+ *      callers share a single request.  An edit during the request clears
+ *      the symbols without waiting; the result is then returned but not
+ *      kept.
+ **/
+
+private CompletableFuture<JSONArray> requestSymbols()
+{
+   synchronized (symbol_lock) {
+      JSONArray syms = file_symbols;
+      if (syms == null) syms = loadIndexedSymbols();
+      if (syms != null) return CompletableFuture.completedFuture(syms);
+      CompletableFuture<JSONArray> req = symbol_request;
+      if (req != null) return req;
+
       LspLog.logD("GET SYMBOLS for " + getFile());
-      
-      file_symbols = new JSONArray();
-      LspBaseProtocol proto = for_project.getProtocol();
-      try {
-         proto.sendWorkMessage("textDocument/documentSymbol",
-               this::handleSymbols,
-               "textDocument",getTextDocumentId());
-       }
-      catch (LspBaseException e) {
-         LspLog.logE("Problem getting document symbols",e);
+
+      int gen = symbol_generation;
+      JSONArray rslt = new JSONArray();
+      req = for_project.getProtocol().sendWorkAsync("textDocument/documentSymbol",
+	    (LspArrayResponder) (jarr) -> handleSymbols(jarr,rslt),
+	    "textDocument",getTextDocumentId())
+	 .handle((r,t) -> finishSymbols(rslt,gen,t));
+      // an immediate failure has already been handled
+      if (!req.isDone()) symbol_request = req;
+      return req;
+    }
+}
+
+
+private JSONArray finishSymbols(JSONArray rslt,int gen,Throwable t)
+{
+   LspLog.logD("DONE GET SYMBOLS " + getFile());
+
+   synchronized (symbol_lock) {
+      if (gen == symbol_generation) symbol_request = null;
+      if (t != null) {
+	 LspLog.logE("Problem getting document symbols",t);
+	 return rslt;
        }
-      
-      LspLog.logD("DONE GET SYMBOLS");
-      
+
       if (for_project.getLanguageData().getCapabilityBool("lsp.fileModule")) {
-         String nm = for_file.getName();
-         int idx = nm.lastIndexOf(".");
-         if (idx > 0) nm = nm.substring(0,idx);
-         JSONObject rng = proto.createRange(this,0,getLength());
-         JSONObject obj = createJson("name","","kind",2,"range",rng,
-               "selectionRange",rng);
-         addSymbolForFile(obj,null);
+	 String nm = for_file.getName();
+	 int idx = nm.lastIndexOf(".");
+	 if (idx > 0) nm = nm.substring(0,idx);
+	 JSONObject rng = for_project.getProtocol().createRange(this,0,getLength());
+	 JSONObject obj = createJson("name","","kind",2,"range",rng,
+	       "selectionRange",rng);
+	 addSymbolForFile(rslt,obj,null);
        }
+
+      if (gen == symbol_generation) {
+	 symbol_keys = new SymbolKeys(rslt);
+	 file_symbols = rslt;
+	 symbol_shift = null;
+	 if (!is_dirty) for_project.getSymbolIndex().noteSymbols(this,rslt);
+       }
+      return rslt;
     }
-   return file_symbols;
 }
 
 
+/**
+ *	Return the symbols if they are known without asking the server,
+ *	null otherwise.
+ **/
+
+JSONArray getKnownSymbols()
+{
+   JSONArray syms = file_symbols;
+   if (syms == null) syms = loadIndexedSymbols();
+   if (syms != null) noteCacheAccess();
+   return syms;
+}
+
+
+private JSONArray loadIndexedSymbols()
+{
+   // the index describes the disk contents, not unsaved edits
+   if (is_dirty) return null;
+
+   int gen = symbol_generation;
+   JSONArray syms = for_project.getSymbolIndex().getSymbols(this);
+   if (syms != null && gen == symbol_generation && !is_dirty) file_symbols = syms;
+   return syms;
+}
+
+
+/**
+ *	Find a symbol by its qualified name.  A simple name that is not
+ *	a top-level symbol matches the first symbol with that name.
+ **/
+
 JSONObject findSymbol(JSONArray syms,String name)
 {
    if (syms == null) return null;
 
-   int idx = name.indexOf(".");
-   String lookfor = name;
-   if (idx > 0) {
-      lookfor = name.substring(0,idx);
-      name = name.substring(idx+1);
-    }
-   else name = null;
-   for (int i = 0; i < syms.length(); ++i) {
-      JSONObject sym = syms.getJSONObject(i);
-      if (sym.getString("name").equals(lookfor)) {
-	 if (name == null) return sym;
-	 else return findSymbol(sym.optJSONArray("children"),name);
-       }
+   SymbolKeys keys = getSymbolKeys(syms);
+   JSONObject sym = keys.findKey(name);
+   if (sym == null && name.indexOf(".") < 0) sym = keys.findSimpleName(name);
+   return sym;
+}
+
+
+/**
+ *	Find a symbol given the part of a handle after the file, either its
+ *	qualified name or its qualified name followed by its detail.
+ **/
+
+JSONObject findSymbolByKey(String key)
+{
+   JSONObject sym = getSymbolKeys(getSymbols()).findKey(key);
+
+   // a symbol added by recent edits is only in the new symbols
+   if (sym == null && areSymbolsStale()) {
+      sym = getSymbolKeys(getSymbols(true)).findKey(key);
     }
-   return null;
+
+   return sym;
+}
+
+
+private SymbolKeys getSymbolKeys(JSONArray syms)
+{
+   SymbolKeys keys = symbol_keys;
+   if (keys != null && keys.isFor(syms)) return keys;
+
+   keys = new SymbolKeys(syms);
+   symbol_keys = keys;
+   return keys;
 }
 
 
-private void handleSymbols(JSONArray jarr)
+private void handleSymbols(JSONArray jarr,JSONArray rslt)
 {
    for (int i = 0; i < jarr.length(); ++i) {
-      addSymbolForFile(jarr.getJSONObject(i),null);
+      addSymbolForFile(rslt,jarr.getJSONObject(i),null);
     }
 }
 
 
-private void addSymbolForFile(JSONObject sym,String pfx)
+static void addSymbolForFile(JSONArray rslt,JSONObject sym,String pfx)
 {
    if (pfx != null) {
       sym.put("prefix",pfx);
     }
-   file_symbols.put(sym);
+   rslt.put(sym);
    JSONArray children = sym.optJSONArray("children");
    if (children != null) {
       String nm = sym.getString("name");
       if (pfx == null) pfx = nm;
       else pfx = pfx + "." + nm;
       for (int i = 0; i < children.length(); ++i) {
-	 addSymbolForFile(children.getJSONObject(i),pfx);
+	 addSymbolForFile(rslt,children.getJSONObject(i),pfx);
        }
       sym.put("children",JSONObject.NULL);
       sym.put("nested",children);
@@ -513,9 +867,105 @@ private void addSymbolForFile(JSONObject sym,String pfx)
 }
 
 
-synchronized void clearSymbols()
+void clearSymbols()
 {
+   ++symbol_generation;
    file_symbols = null;
+   symbol_request = null;
+   symbol_ranges = null;
+   symbol_line_ranges = null;
+   symbol_keys = null;
+   symbol_shift = null;
+}
+
+
+/**
+ *	Return true if the symbols that would be returned without asking
+ *	for exact ones predate the latest edits.
+ **/
+
+boolean areSymbolsStale()
+{
+   return file_symbols == null && symbol_shift != null;
+}
+
+
+/**
+ *	Start tracking symbol ranges through an edit.  Called with the file
+ *	locked before any change is made.
+ **/
+
+private LspBaseSymbolShift startSymbolShift()
+{
+   LspBaseSymbolShift shift = symbol_shift;
+   if (shift != null) return shift;
+
+   JSONArray syms = file_symbols;
+   if (syms == null) return null;
+
+   return new LspBaseSymbolShift(this,syms);
+}
+
+
+/**
+ *	Drop the current symbols after an edit, keeping the shifted ones to
+ *	serve until new symbols arrive.
+ **/
+
+private void noteSymbolsEdited(LspBaseSymbolShift shift)
+{
+   clearSymbols();
+   symbol_shift = shift;
+}
+
+
+private JSONArray getShiftedSymbols()
+{
+   LspBaseSymbolShift shift = symbol_shift;
+   if (shift == null || file_symbols != null) return null;
+
+   JSONArray syms;
+   lockRead();
+   try {
+      syms = shift.getSymbols(this);
+    }
+   finally {
+      unlockRead();
+    }
+
+   // refresh in the background; later callers share the request
+   requestSymbols();
+
+   return syms;
+}
+
+
+/**
+ *	Return the offset index for the given symbols against the current
+ *	contents.  If linestart is true, ranges start at the beginning of
+ *	their first line.
+ **/
+
+LspBaseSymbolRanges getSymbolRanges(JSONArray syms,boolean linestart)
+{
+   LspBaseDocument doc = getSnapshot();
+   LspBaseSymbolRanges rngs = (linestart ? symbol_line_ranges : symbol_ranges);
+   if (rngs != null && rngs.isFor(syms,doc)) return rngs;
+
+   int n = syms.length();
+   int [] starts = new int[n];
+   int [] ends = new int[n];
+   for (int i = 0; i < n; ++i) {
+      JSONObject range = syms.getJSONObject(i).getJSONObject("range");
+      if (linestart) starts[i] = mapRangeToLineStartOffset(range);
+      else starts[i] = mapRangeToStartOffset(range);
+      ends[i] = mapRangeToEndOffset(range);
+    }
+   rngs = new LspBaseSymbolRanges(syms,doc,starts,ends);
+
+   if (linestart) symbol_line_ranges = rngs;
+   else symbol_ranges = rngs;
+   return rngs;
 }
 
 
@@ -536,11 +986,19 @@ void open(String bid,boolean contents) throws LspBaseException
    if (bid != null && !bid.startsWith("*")) base_ids.add(bid);
 
    if (contents) loadContents();
-   
-   if (file_version > 0) return;
+   noteCacheAccess();
 
-   for_project.openFile(this);
-   file_version = 1;
+   if (file_version > 0) {
+      ensureServerOpen();
+      return;
+    }
+
+   synchronized (open_lock) {
+      for_project.openFile(this);
+      file_version = 1;
+      server_open = true;
+    }
+   for_project.getWorkingSet().noteUse(this);
 }
 
 
@@ -548,15 +1006,78 @@ void close(String bid)
 {
    base_ids.remove(bid);
    if (base_ids.isEmpty()) {
+      // the working set may already have closed it on the server
+      if (server_open) {
+	 try {
+	    for_project.didCloseFile(this);
+	  }
+	 catch (LspBaseException e) {
+	    LspLog.logE("Problem closing file",e);
+	  }
+       }
+      file_contents = null;
+      file_version = -1;
+      server_open = false;
+      for_project.getFileCache().noteRelease(this);
+      for_project.getWorkingSet().noteClosed(this);
+    }
+}
+
+
+/**
+ *      Make sure the server has the document open, reopening it with a
+ *      new version if the working set closed it.  Files closed by the user
+ *      (version -1) or never opened are left alone.
+ **/
+
+private void ensureServerOpen()
+{
+   if (!server_open) {
+      if (file_version < 0) return;
+      if (file_version == 0 && !must_open) return;
+      synchronized (open_lock) {
+	 if (!server_open) {
+	    // versions only increase across a close and reopen
+	    file_version = file_version + 1;
+	    LspBaseDocument doc = file_contents;
+	    if (doc != null) file_contents = doc.setVersion(file_version);
+	    try {
+	       for_project.openFile(this);
+	       server_open = true;
+	     }
+	    catch (LspBaseException e) {
+	       LspLog.logE("Problem reopening file",e);
+	       return;
+	     }
+	  }
+       }
+    }
+
+   for_project.getWorkingSet().noteUse(this);
+}
+
+
+/**
+ *      Close the server's copy of an unpinned file to bound the working
+ *      set.  Returns true if it was closed.
+ **/
+
+boolean closeOnServer()
+{
+   synchronized (open_lock) {
+      if (!server_open || isPinned() || isBusyOnServer()) return false;
       try {
-	 for_project.didCloseFile(this);
+	 for_project.didCloseFile(this,false);
        }
       catch (LspBaseException e) {
-	 LspLog.logE("Problem closing file",e);
+	 LspLog.logE("Problem closing file on server",e);
+	 return false;
        }
-      file_contents = null;
-      file_version = -1;
+      server_open = false;
+      for_project.getWorkingSet().noteClosed(this);
     }
+
+   return true;
 }
 
 
@@ -564,31 +1085,32 @@ void close(String bid)
 
 void refreshFile() throws LspBaseException
 {
+   clearSymbols();
    file_contents = null;
+   is_dirty = false;
    ++file_version;
    for_project.didCloseFile(this);
    loadContents();
    for_project.openFile(this);
-   int len = file_contents.length();
-   try {
-      String txt = file_contents.getString(0,len);
-      for (String bid : base_ids) {
-	 sendEditToBubbles(bid,0,len,txt);
-       }
+   server_open = true;
+   LspBaseDocument doc = getSnapshot();
+   int len = doc.length();
+   synchronized (bubble_edits) {
+      bubble_edits.add(new BubbleEdit(base_ids,null,file_version,0,len,doc.toString(),len));
     }
-   catch (BadLocationException e) { }
+   startBubbleEdits();
 }
 
 
 
-private void sendEditToBubbles(String bid,int off,int len,String txt)
+private void sendEditToBubbles(String bid,int off,int len,String txt,int doclen)
 {
    LspBaseMain lspmain = LspBaseMain.getLspMain();
    IvyXmlWriter msg = lspmain.beginMessage("EDIT",bid);
    msg.field("FILE",getPath());
    msg.field("LENGTH",len);
    msg.field("OFFSET",off);
-   if (off == 0 && len == file_contents.length() && txt != null && len > 0) {
+   if (off == 0 && len == doclen && txt != null && len > 0) {
       msg.field("COMPLETE",true);
       byte [] data = txt.getBytes();
       msg.bytesElement("CONTENTS",data);
@@ -600,6 +1122,63 @@ private void sendEditToBubbles(String bid,int off,int len,String txt)
 }
 
 
+/**
+ *      Queue the combined effect of one batch of edits for the other
+ *      editors of the file.  This is called under the file lock so the
+ *      queue is in version order; the messages are sent after the lock is
+ *      released.
+ **/
+
+private void queueBubbleEdit(String bid,int ver,EditRange rng,LspBaseDocument doc)
+{
+   if (rng.isEmpty()) return;
+   if (base_ids.isEmpty() || (base_ids.size() == 1 && base_ids.contains(bid))) return;
+
+   int off = rng.getStart();
+   String txt = doc.getText(off,rng.getNewLength());
+   BubbleEdit be = new BubbleEdit(base_ids,bid,ver,off,rng.getOldLength(),txt,doc.length());
+   synchronized (bubble_edits) {
+      bubble_edits.add(be);
+    }
+}
+
+
+private void startBubbleEdits()
+{
+   synchronized (bubble_edits) {
+      if (bubble_sending || bubble_edits.isEmpty()) return;
+      bubble_sending = true;
+    }
+
+   LspBaseMain.getLspMain().startTask(this::sendBubbleEdits);
+}
+
+
+/**
+ *      Only one task sends at a time, so editors see the batches in the
+ *      order of their versions.
+ **/
+
+private void sendBubbleEdits()
+{
+   for ( ; ; ) {
+      BubbleEdit be = null;
+      synchronized (bubble_edits) {
+	 be = bubble_edits.poll();
+	 if (be == null) {
+	    bubble_sending = false;
+	    return;
+	  }
+       }
+      LspLog.logD("SEND EDIT TO BUBBLES " + be.getVersion() + " " + be.getOffset() + " " +
+	    be.getLength());
+      for (String user : be.getTargets()) {
+	 sendEditToBubbles(user,be.getOffset(),be.getLength(),be.getText(),be.getDocLength());
+       }
+    }
+}
+
+
 void reload()
 { }
 
@@ -621,6 +1200,11 @@ void edit(String bid,int id,List<LspBaseEdit> edits) throws LspBaseException
    lockFile(bid);
    try {
       JSONArray changes = new JSONArray();
+      LspBaseDocument doc = getSnapshot();
+      // readers keep the old offsets until the new text is published
+      LspBaseLineOffsets lo = getLineOffsets().copy();
+      EditRange urng = new EditRange();
+      LspBaseSymbolShift shift = startSymbolShift();
       try {
 	 for (LspBaseEdit edit : edits) {
 	    int len = edit.getLength();
@@ -628,50 +1212,55 @@ void edit(String bid,int id,List<LspBaseEdit> edits) throws LspBaseException
 	    int tlen = 0;
 	    String text = edit.getText();
 	    String txt = (text == null ? "" : text);
-	    LspLog.logD("EDIT BUFFER " + off + " " + len + " " + 
-                  IvyFormat.formatString(txt) + " " + edit);
+	    LspLog.logD(() -> "EDIT BUFFER " + off + " " + edit.getLength() + " " +
+		  IvyFormat.formatString(txt) + " " + edit);
 
 	    JSONObject rng = proto.createRange(this,off,off+len);
 	    JSONObject rchng = createJson("range",rng,"text",txt);
 	    changes.put(rchng);
 
 	    if (len > 0) {
-               if (off + len >= file_contents.length()) {
-                  len = file_contents.length() - off - 1;
+               if (off + len >= doc.length()) {
+                  len = doc.length() - off - 1;
                 }
-	       file_contents.remove(off,len);
+	       doc = doc.remove(off,len);
 	     }
 	    if (text != null && text.length() > 0) {
-	       file_contents.insertString(off,text);
+	       doc = doc.insert(off,text);
 	       tlen = text.length();
 	     }
+	    updatePositions(off,len,tlen);
 	    if (file_elider != null) {
 	       file_elider.noteEdit(off,len,tlen);
 	     }
 
-	    for (String user : base_ids) {
-	       if (user.equals(bid)) continue;
-	       sendEditToBubbles(user,off,len,txt);
-	     }
+	    urng.add(off,len,tlen);
+	    if (shift != null) shift.noteEdit(off,len,tlen);
 
-	    line_offsets.update(off,off+len,text);
+	    lo.update(off,off+len,text);
 	  }
        }
-      catch (BadLocationException e) {
+      catch (IndexOutOfBoundsException e) {
          LspLog.logE("Problem editing " + e);
        }
 
       chng = is_changed;
       is_changed = true;
-      clearSymbols();
-      ver = ++file_version;
-      proto.sendMessage("textDocument/didChange",
-	    "textDocument",getTextDocumentId(),"contentChanges",changes);
+      is_dirty = true;
+      ver = noteChanges(changes);
+      line_offsets = lo;
+      file_contents = doc.setVersion(ver);
+      queueBubbleEdit(bid,ver,urng,doc);
+      proto.cancelStaleRequests(getUri(),ver);
+      noteSymbolsEdited(shift);
     }
    finally {
       unlockFile();
     }
 
+   startBubbleEdits();
+   noteCacheAccess();
+
    LspBaseMain lsp = LspBaseMain.getLspMain();
    if (!chng) {
       IvyXmlWriter mxw = lsp.beginMessage("FILECHANGE");
@@ -683,6 +1272,54 @@ void edit(String bid,int id,List<LspBaseEdit> edits) throws LspBaseException
 }
 
 
+/**
+ *      Record the changes from one edit and bump the version.  Changes
+ *      are held for a short window (lsp.edit.changeDelay) so that a burst
+ *      of keystrokes goes to the server as a single didChange.
+ **/
+
+private int noteChanges(JSONArray changes)
+{
+   int delay = getLanguageData().getCapabilityInt("lsp.edit.changeDelay",0);
+
+   synchronized (change_lock) {
+      if (pending_changes == null) pending_changes = new JSONArray();
+      // changes apply in sequence, so later ones simply follow
+      for (int i = 0; i < changes.length(); ++i) {
+	 pending_changes.put(changes.get(i));
+       }
+      int ver = ++file_version;
+      if (delay <= 0) {
+	 flushChanges();
+       }
+      else if (!flush_scheduled) {
+	 flush_scheduled = true;
+	 LspBaseMain.getLspMain().startTaskDelayed(this::flushChanges,delay);
+       }
+      return ver;
+    }
+}
+
+
+void flushChanges()
+{
+   synchronized (change_lock) {
+      flush_scheduled = false;
+      if (pending_changes == null) return;
+      JSONArray changes = pending_changes;
+      pending_changes = null;
+      try {
+	 LspBaseProtocol proto = getProject().getProtocol();
+	 proto.sendMessage("textDocument/didChange",
+	       "textDocument",getLocalDocumentId(),"contentChanges",changes);
+       }
+      catch (LspBaseException e) {
+	 LspLog.logE("Problem sending changes",e);
+       }
+    }
+}
+
+
 void edit(String bid,int tid,JSONArray jedits) throws LspBaseException
 {
    List<LspBaseEdit> edits = new ArrayList<>();
@@ -965,9 +1602,18 @@ void hoverData(String bid,int soffset,int eoffset,IvyXmlWriter xw)
 {
    LspBaseProtocol proto = getProject().getProtocol();
    HoverResponse fixer = new HoverResponse();
+   JSONObject tdi = null;
+   JSONObject pos = null;
+   lockRead();
+   try {
+      tdi = getTextDocumentId();
+      pos = proto.createPosition(this,soffset);
+    }
+   finally {
+      unlockRead();
+    }
    proto.sendMessage("textDocument/hover",fixer,
-	 "textDocument",getTextDocumentId(),
-	 "position",proto.createPosition(this,soffset));
+	 "textDocument",tdi,"position",pos);
 
    String rslt = fixer.getHoverHtml();
    if (rslt != null) {
@@ -1037,6 +1683,10 @@ void findRegions(String cls,boolean pfx,boolean stat,boolean compunit,
    JSONArray syms = getSymbols();
    if (cls != null) {
       top = findSymbol(syms,cls);
+      if (top == null && areSymbolsStale()) {
+	 syms = getSymbols(true);
+	 top = findSymbol(syms,cls);
+       }
       if (top == null && !compunit) throw new LspBaseException("Class " + cls + " not found");
       if (top != null) {
          syms = top.optJSONArray("nested");
@@ -1057,22 +1707,29 @@ void findRegions(String cls,boolean pfx,boolean stat,boolean compunit,
    if (syms == null) syms = new JSONArray();
 
    int soffset = 0;
-   int eoffset = getLength();
-   if (top != null) {
-      JSONObject rng = top.getJSONObject("range");
-      soffset = mapRangeToStartOffset(rng);
-      eoffset = mapRangeToEndOffset(rng);
-    }
-
-   int upto = eoffset;
+   int eoffset = 0;
+   int upto = 0;
    int restart = -1;
-   for (int i = 0; i < syms.length(); ++i) {
-      JSONObject sym = syms.getJSONObject(i);
-      JSONObject rng = sym.getJSONObject("range");
-      int symoff = mapRangeToStartOffset(rng);
-      upto = Math.min(symoff,upto);
-      int esymoff = mapRangeToEndOffset(rng);
-      restart = Math.max(restart,esymoff);
+   lockRead();
+   try {
+      eoffset = getLength();
+      if (top != null) {
+	 JSONObject rng = top.getJSONObject("range");
+	 soffset = mapRangeToStartOffset(rng);
+	 eoffset = mapRangeToEndOffset(rng);
+       }
+      upto = eoffset;
+      for (int i = 0; i < syms.length(); ++i) {
+	 JSONObject sym = syms.getJSONObject(i);
+	 JSONObject rng = sym.getJSONObject("range");
+	 int symoff = mapRangeToStartOffset(rng);
+	 upto = Math.min(symoff,upto);
+	 int esymoff = mapRangeToEndOffset(rng);
+	 restart = Math.max(restart,esymoff);
+       }
+    }
+   finally {
+      unlockRead();
     }
 
    boolean needtokens = compunit || imports || pkg;
@@ -1092,7 +1749,7 @@ void findRegions(String cls,boolean pfx,boolean stat,boolean compunit,
    if (needtokens) {
       setupTokens();
       LspBaseProtocol proto = getProject().getProtocol();
-      proto.sendWorkMessage("textDocument/semanticTokens/range",th,
+      proto.sendTokenWorkMessage("textDocument/semanticTokens/range",th,
 	    "textDocument",getTextDocumentId(),
 	    "range",proto.createRange(this,soffset,upto));
     }
@@ -1186,7 +1843,7 @@ private void outputRange(int soffset,int eoffset,IvyXmlWriter xw)
 
 
 
-private class TokenHolder implements LspJsonResponder {
+private class TokenHolder implements LspTokenResponder {
 
    private List<Integer> package_lines;
    private List<Integer> import_lines;
@@ -1199,35 +1856,26 @@ private class TokenHolder implements LspJsonResponder {
    List<Integer> getPackageLines()			{ return package_lines; }
    List<Integer> getImportLines()			{ return import_lines; }
 
-   @Override public void handleResponse(JSONObject data) {
-      JSONArray arr = data.getJSONArray("data");
-
+   @Override public void handleResponse(int [] arr) {
       int line = 0;
       int col = 0;
       int lastline = -1;
-      for (int i = 0; i < arr.length(); i += 5) {
-	 int dline = arr.getInt(i+0);
+      for (int i = 0; i+4 < arr.length; i += 5) {
+	 int dline = arr[i+0];
 	 line += dline;
 	 if (dline > 0) col = 0;
-	 col += arr.getInt(i+1);
-	 int len = arr.getInt(i+2);
+	 col += arr[i+1];
+	 int len = arr[i+2];
 	 int soff = mapLspLineCharToOffset(line,col);
-	 int eoff = soff + len;
+	 int eoff = mapLspLineCharToOffset(line,col+len);
 
-	 String typ = token_types[arr.getInt(i+3)];
+	 String typ = token_types[arr[i+3]];
 	 String cnt = getText(soff,eoff-soff);
-	 Set<String> modset = new HashSet<>();
-	 int modbits = arr.getInt(i+4);
-	 String mods = "";
-	 if (modbits != 0) {
-	    for (int j = 0; j < token_modifiers.length; ++j) {
-	       if ((modbits & (1<<j)) != 0) {
-		  mods += ";" + token_modifiers[j];
-		  modset.add(token_modifiers[j]);
-		}
-	     }
-	  }
-	 LspLog.logD("REGION-TOKEN " + line + " " + col + " " + len + " " + typ + " " + mods + " " + cnt);
+	 int modbits = arr[i+4];
+	 int tline = line;
+	 int tcol = col;
+	 LspLog.logD(() -> "REGION-TOKEN " + tline + " " + tcol + " " + len + " " + typ + " " +
+	       getModifierNames(modbits) + " " + cnt);
 
 	 if (line != lastline && (typ == "keyword" || typ == "function")) {
 	    switch (cnt) {
@@ -1246,6 +1894,14 @@ private class TokenHolder implements LspJsonResponder {
 	 lastline = line;
        }
     }
+
+   private String getModifierNames(int modbits) {
+      StringBuilder buf = new StringBuilder();
+      for (int j = 0; j < token_modifiers.length; ++j) {
+	 if ((modbits & (1<<j)) != 0) buf.append(";").append(token_modifiers[j]);
+       }
+      return buf.toString();
+    }
 }
 
 
@@ -1257,9 +1913,25 @@ private class TokenHolder implements LspJsonResponder {
 /********************************************************************************/
 
 void textSearch(TextSearchData td,IvyXmlWriter xw)
+{
+   // symbols may need a round trip, so get them before locking
+   JSONArray syms = getSymbols();
+
+   lockRead();
+   try {
+      textSearch(td,syms,xw);
+    }
+   finally {
+      unlockRead();
+    }
+}
+
+
+private void textSearch(TextSearchData td,JSONArray syms,IvyXmlWriter xw)
 {
    CharSequence text =  null;
-   if (file_contents == null) {
+   LspBaseDocument doc = file_contents;
+   if (doc == null) {
       try {
          text = IvyFile.loadFile(for_file);
        }
@@ -1268,45 +1940,17 @@ void textSearch(TextSearchData td,IvyXmlWriter xw)
        }
     }
    else {
-      text = getSegment(0,file_contents.length());
+      text = doc.getSegment(0,doc.length(),null);
     }
    
+   LspBaseSymbolRanges rngs = getSymbolRanges(syms,true);
    Matcher m = td.getPattern().matcher(text);
    while (m.find()) {
       xw.begin("MATCH");
       xw.field("STARTOFFSET",m.start());
       xw.field("LENGTH",m.end() - m.start());
       xw.field("FILE",for_file.getPath());
-      JSONArray syms = getSymbols();
-      JSONObject best = null;
-      int bestsz = 0;
-      for (int i = 0; i < syms.length(); ++i) {
-         JSONObject sym = syms.getJSONObject(i);
-         JSONObject range = sym.getJSONObject("range");
-         int kind = sym.getInt("kind");
-         switch (kind) {
-            case 1 :
-            case 2 :
-            case 5 :
-            case 6 :
-            case 9 :
-            case 10 :
-            case 11 :
-            case 12 :
-            case 23 :
-               break;
-            default :
-               continue;
-          }
-         int soff = mapRangeToLineStartOffset(range);
-         int eoff = mapRangeToEndOffset(range);
-         if (m.start() >= soff && m.end() <= eoff) {
-            if (best == null || eoff-soff < bestsz) {
-               best = sym;
-               bestsz = eoff-soff;
-             }
-          }
-       }
+      JSONObject best = rngs.findEnclosing(m.start(),m.end(),SEARCH_KINDS);
       if (best != null) {
          LspBaseUtil.outputLspSymbol(for_project,this,best,null,xw);
        }
@@ -1346,12 +1990,17 @@ boolean commit(boolean refresh,boolean save,boolean compile)
     }
    else if (file_version >= 0) {
       for_project.willSaveFile(this);
-      try (FileWriter fw = new FileWriter(getFile())) {
+      // written in the same encoding LspBaseFileLoader reads
+      try (Writer fw = new OutputStreamWriter(new FileOutputStream(getFile()),
+	    StandardCharsets.UTF_8)) {
 	 fw.write(getContents());
+	 is_dirty = false;
        }
       catch (IOException e) {
 	 LspLog.logE("Problem writing file",e);
        }
+      JSONArray syms = file_symbols;
+      if (!is_dirty && syms != null) for_project.getSymbolIndex().noteSymbols(this,syms);
       for_project.didSaveFile(this);
     }
    return false;
@@ -1375,15 +2024,189 @@ Position createPosition(int offset)
 	 LspLog.logE("Problem opening file to create position",e);
        }
     }
-   try {
-      return file_contents.createPosition(offset);
+   if (offset < 0 || offset > getLength()) return null;
+
+   FilePosition pos = new FilePosition(offset);
+   synchronized (file_positions) {
+      file_positions.add(new WeakReference<>(pos));
     }
-   catch (BadLocationException e) {
-      return null;
+   return pos;
+}
+
+
+/**
+ *      Move positions to account for an edit, the way GapContent marks move:
+ *      positions at an insertion point move after the new text, except at
+ *      the start of the file, and positions in removed text collapse to
+ *      its start.
+ **/
+
+private void updatePositions(int off,int dlen,int ilen)
+{
+   synchronized (file_positions) {
+      for (Iterator<WeakReference<FilePosition>> it = file_positions.iterator(); it.hasNext(); ) {
+	 FilePosition fp = it.next().get();
+	 if (fp == null) {
+	    it.remove();
+	    continue;
+	  }
+	 int p = fp.getOffset();
+	 if (dlen > 0) {
+	    if (p >= off + dlen) p -= dlen;
+	    else if (p > off) p = off;
+	  }
+	 if (ilen > 0 && p >= off && p > 0) p += ilen;
+	 fp.setOffset(p);
+       }
     }
 }
 
 
+private static class FilePosition implements Position {
+
+   private volatile int position_offset;
+
+   FilePosition(int off) {
+      position_offset = off;
+    }
+
+   @Override public int getOffset()		{ return position_offset; }
+
+   void setOffset(int off)			{ position_offset = off; }
+
+}	// end of inner class FilePosition
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Symbol lookup by name							*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *	Names are qualified as in symbol handles: the prefix, a dot, and the
+ *	name, with handles also stripping any parameters from the name and
+ *	appending the detail.  The first symbol with a given key wins, with
+ *	full names taking precedence over handles.
+ **/
+
+private static class SymbolKeys {
+
+   private JSONArray for_symbols;
+   private Map<String,JSONObject> key_map;
+   private Map<String,JSONObject> simple_map;
+
+   SymbolKeys(JSONArray syms) {
+      for_symbols = syms;
+      int n = syms.length();
+      key_map = new HashMap<>(n*3);
+      simple_map = new HashMap<>(n*2);
+      List<String> handles = new ArrayList<>();
+      for (int i = 0; i < n; ++i) {
+	 JSONObject sym = syms.getJSONObject(i);
+	 String nm = sym.getString("name");
+	 String pfx = sym.optString("prefix",null);
+	 String xpfx = (pfx == null ? "" : pfx + ".");
+	 key_map.putIfAbsent(xpfx + nm,sym);
+	 simple_map.putIfAbsent(nm,sym);
+	 int idx = nm.indexOf("(");
+	 String qnam = xpfx + (idx > 0 ? nm.substring(0,idx) : nm);
+	 String det = sym.optString("detail",null);
+	 handles.add(det == null ? qnam : qnam + det);
+       }
+      for (int i = 0; i < n; ++i) {
+	 key_map.putIfAbsent(handles.get(i),syms.getJSONObject(i));
+       }
+    }
+
+   boolean isFor(JSONArray syms)		{ return syms == for_symbols; }
+
+   JSONObject findKey(String key)		{ return key_map.get(key); }
+
+   JSONObject findSimpleName(String nm) 	{ return simple_map.get(nm); }
+
+}	// end of inner class SymbolKeys
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Edits passed on to other editors					*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *      Union of a sequence of edits as a single replacement: the range
+ *      from start to old_end of the original text became the range from
+ *      start to end_offset of the new text.
+ **/
+
+private static class EditRange {
+
+   private boolean is_empty;
+   private int start_offset;
+   private int end_offset;
+   private int old_end;
+
+   EditRange() {
+      is_empty = true;
+    }
+
+   void add(int off,int len,int tlen) {
+      int eoff = off + len;
+      if (is_empty) {
+	 start_offset = off;
+	 old_end = eoff;
+	 end_offset = off + tlen;
+	 is_empty = false;
+	 return;
+       }
+      if (eoff > end_offset) old_end += eoff - end_offset;
+      end_offset = Math.max(end_offset,eoff) + tlen - len;
+      start_offset = Math.min(start_offset,off);
+    }
+
+   boolean isEmpty()				{ return is_empty; }
+   int getStart()				{ return start_offset; }
+   int getOldLength()				{ return old_end - start_offset; }
+   int getNewLength()				{ return end_offset - start_offset; }
+
+}	// end of inner class EditRange
+
+
+
+private static class BubbleEdit {
+
+   private List<String> target_ids;
+   private int edit_version;
+   private int edit_offset;
+   private int edit_length;
+   private String edit_text;
+   private int doc_length;
+
+   BubbleEdit(Set<String> users,String bid,int ver,int off,int len,String txt,int dlen) {
+      target_ids = new ArrayList<>();
+      for (String user : users) {
+	 if (!user.equals(bid)) target_ids.add(user);
+       }
+      edit_version = ver;
+      edit_offset = off;
+      edit_length = len;
+      edit_text = txt;
+      doc_length = dlen;
+    }
+
+   List<String> getTargets()			{ return target_ids; }
+   int getVersion()				{ return edit_version; }
+   int getOffset()				{ return edit_offset; }
+   int getLength()				{ return edit_length; }
+   String getText()				{ return edit_text; }
+   int getDocLength()				{ return doc_length; }
+
+}	// end of inner class BubbleEdit
+
+
 /********************************************************************************/
 /*										*/
 /*	Auto compile/elide							*/
@@ -1448,10 +2271,19 @@ void getCompletions(String bid,int offset,IvyXmlWriter xw)
 {
    LspBaseProtocol proto = for_project.getProtocol();
    JSONObject ctxt = createJson("triggerKind",1);
+   JSONObject tdi = null;
+   JSONObject pos = null;
+   lockRead();
+   try {
+      tdi = getTextDocumentId();
+      pos = proto.createPosition(this,offset);
+    }
+   finally {
+      unlockRead();
+    }
    proto.sendWorkMessage("textDocument/completion",
 	 new CompletionHandler(xw),
-	 "textDocument",getTextDocumentId(),
-	 "position",proto.createPosition(this,offset),
+	 "textDocument",tdi,"position",pos,
          "context",ctxt);
 }
 
@@ -1780,12 +2612,11 @@ void createPrivateBuffer(String bid,String pid,String frompid,IvyXmlWriter xw)
 	 if (private_buffers.get(pid) == null) break;
        }
     }
-   else if (private_buffers.get(pid) != null) {
-      throw new LspBaseException("Buffer id " + pid + " already used");
-    }
 
    PrivateBuffer pbf = new PrivateBuffer(pid,frompid);
-   private_buffers.put(pid,pbf);
+   if (private_buffers.putIfAbsent(pid,pbf) != null) {
+      throw new LspBaseException("Buffer id " + pid + " already used");
+    }
    private_buffers.put(pbf.getPrivateUri(),pbf);
 
    CreatePrivateBufferTask task = new CreatePrivateBufferTask(pid);
@@ -1805,22 +2636,25 @@ private class CreatePrivateBufferTask implements Runnable {
     }
 
    @Override public void run() {
-      LspBaseProtocol proto = for_project.getProtocol();
       PrivateBuffer pbf = private_buffers.get(buffer_pid);
       if (pbf == null) return;
-      JSONObject docitm = createJson("uri",pbf.getPrivateUri(),"languageId",file_language,
-            "version",pbf.getVersion(),"text",pbf.getBufferContents());
       try {
-         proto.sendMessage("textDocument/didOpen","textDocument",docitm);
+	 pbf.openOnServer();
        }
       catch (LspBaseException e) {
-         LspLog.logE("Problem opening private buffer",e);
+	 LspLog.logE("Problem opening private buffer",e);
        }
     }
 
 }
 
 
+/**
+ *      Edits are applied to the buffer's own copy of the text and line
+ *      offsets and sent as incremental changes with ranges in the
+ *      buffer's coordinates.
+ **/
+
 void editPrivateBuffer(String pid,List<LspBaseEdit> edits,IvyXmlWriter xw)
    throws LspBaseException
 {
@@ -1829,20 +2663,27 @@ void editPrivateBuffer(String pid,List<LspBaseEdit> edits,IvyXmlWriter xw)
    PrivateBuffer pbf = findPrivateBuffer(pid);
    if (pbf == null) throw new LspBaseException("Private buffer " + pid + " not found");
 
-   JSONArray changes = new JSONArray();
-   for (LspBaseEdit edit : edits) {
-      int len = edit.getLength();
-      int off = edit.getOffset();
-      String text = edit.getText();
+   synchronized (pbf) {
+      if (pbf.isRemoved()) throw new LspBaseException("Private buffer " + pid + " not found");
+      pbf.openOnServer();
+      JSONArray changes = new JSONArray();
+      for (LspBaseEdit edit : edits) {
+	 int off = edit.getOffset();
+	 // the server, the rope and the line offsets must all see the same edit
+	 int len = pbf.clampLength(off,edit.getLength());
+	 String text = edit.getText();
 
-      String txt = (text == null ? "" : text);
-      JSONObject rng = proto.createRange(this,off,off+len);
-      JSONObject chng = createJson("range",rng,"text",txt);
-      changes.put(chng);
+	 String txt = (text == null ? "" : text);
+	 JSONObject rng = createJson("start",pbf.createPosition(off),
+	       "end",pbf.createPosition(off+len));
+	 JSONObject chng = createJson("range",rng,"text",txt);
+	 changes.put(chng);
+	 pbf.applyEdit(off,len,text);
+       }
+      JSONObject docitm1 = createJson("uri",pbf.getPrivateUri(),"version",pbf.noteEdit());
+      proto.sendMessage("textDocument/didChange","textDocument",docitm1,
+	    "contentChanges",changes);
     }
-   JSONObject docitm1 = createJson("uri",pbf.getPrivateUri(),"version",pbf.noteEdit());
-   proto.sendMessage("textDocument/didChange","textDocument",docitm1,
-	 "contentChanges",changes);
 }
 
 
@@ -1852,10 +2693,9 @@ void removePrivateBuffer(String pid) throws LspBaseException
 {
    PrivateBuffer pbf = findPrivateBuffer(pid);
    if (pbf != null) {
-      LspBaseProtocol proto = for_project.getProtocol();     JSONObject docitm1 = createJson("uri",pbf.getPrivateUri());
-      proto.sendMessage("textDocument/didClose","textDocument",docitm1);
       private_buffers.remove(pid);
       private_buffers.remove(pbf.getPrivateUri());
+      pbf.closeOnServer();
     }
 }
 
@@ -1870,35 +2710,54 @@ private PrivateBuffer findPrivateBuffer(String pid)
 
 
 
+/**
+ *      A private buffer starts as the base snapshot (or another buffer's
+ *      text) and shares its rope and line offset tree; its own edits only
+ *      copy the parts of the trees they touch.
+ **/
+
 private class PrivateBuffer {
 
-   private GapContent buffer_text;
+   private LspBaseDocument buffer_text;
+   private LspBaseLineOffsets buffer_lines;
+   private LspBaseColumnMap buffer_columns;
    private String buffer_name;
    private File file_name;
    private int version_id;
+   private boolean server_open;
+   private boolean is_removed;
 
 
    PrivateBuffer(String pid,String frompid) throws LspBaseException {
       buffer_name = pid;
-      buffer_text = new GapContent();
-      String txt = null;
-      if (frompid == null) txt = getContents();
+      if (frompid == null) {
+	 lockRead();
+	 try {
+	    buffer_text = getSnapshot();
+	    buffer_lines = getLineOffsets().copy();
+	  }
+	 finally {
+	    unlockRead();
+	  }
+       }
       else {
 	 PrivateBuffer pbf = findPrivateBuffer(frompid);
-	 if (pbf == null) throw new LspBaseException("Private buffer " + pbf + " not found");
-	 txt = pbf.getBufferContents();
-       }
-      LspLog.logD("PRIVATE BUFFER CONTENTS: " + txt);
-      try {
-	 buffer_text.insertString(0,txt);
+	 if (pbf == null) throw new LspBaseException("Private buffer " + frompid + " not found");
+	 synchronized (pbf) {
+	    buffer_text = pbf.buffer_text;
+	    buffer_lines = pbf.buffer_lines.copy();
+	  }
        }
-      catch (BadLocationException e) { }
+      LspLog.logD("PRIVATE BUFFER " + pid + " " + buffer_text.length());
       String fnm = getPath();
       int idx = fnm.lastIndexOf(".");
       String hdr = fnm.substring(0,idx);
       String pvtnm = hdr + PRIVATE_PREFIX + buffer_name + fnm.substring(idx);
       file_name = new File(pvtnm);
       version_id = 1;
+      server_open = false;
+      is_removed = false;
+      buffer_columns = null;
     }
 
    String getPrivateUri()		{ return getUri(file_name); }
@@ -1907,13 +2766,71 @@ private class PrivateBuffer {
    int noteEdit()			{ return ++version_id; }
 
    String getBufferContents() {
+      return buffer_text.toString();
+    }
+
+   synchronized boolean isRemoved()		{ return is_removed; }
+
+   synchronized void openOnServer() throws LspBaseException {
+      // a buffer removed before its open task ran is never opened
+      if (server_open || is_removed) return;
+      server_open = true;
+      JSONObject docitm = createJson("uri",getPrivateUri(),"languageId",file_language,
+	    "version",version_id,"text",getBufferContents());
+      LspBaseProtocol proto = for_project.getProtocol();
+      proto.sendMessage("textDocument/didOpen","textDocument",docitm);
+    }
+
+   synchronized void closeOnServer() throws LspBaseException {
+      is_removed = true;
+      if (!server_open) return;
+      server_open = false;
+      JSONObject docitm = createJson("uri",getPrivateUri());
+      LspBaseProtocol proto = for_project.getProtocol();
+      proto.sendMessage("textDocument/didClose","textDocument",docitm);
+    }
+
+   /**
+    *	Clamp an edit's length so it leaves the implied final newline.
+    **/
+
+   int clampLength(int off,int len) {
+      int max = buffer_text.length() - off - 1;
+      if (len > max) len = Math.max(max,0);
+      return len;
+    }
+
+   JSONObject createPosition(int off) {
+      int line = buffer_lines.findLine(off);
+      int lstart = buffer_lines.findOffset(line);
+      int col = off - lstart;
+      String enc = getLanguageData().getPositionEncoding();
+      if (buffer_columns == null || !buffer_columns.isFor(buffer_text)) {
+	 buffer_columns = LspBaseColumnMap.create(buffer_text,enc);
+       }
+      if (buffer_columns != null) {
+	 col = buffer_columns.toLspColumn(line,lstart,buffer_lines.findOffset(line+1),col);
+       }
+      return createJson("line",line-1,"character",col);
+    }
+
+   /**
+    *	Apply an edit whose length has already been clamped.
+    **/
+
+   void applyEdit(int off,int len,String text) {
       try {
-	 return buffer_text.getString(0,buffer_text.length());
+	 if (len > 0) {
+	    buffer_text = buffer_text.remove(off,len);
+	  }
+	 if (text != null && text.length() > 0) {
+	    buffer_text = buffer_text.insert(off,text);
+	  }
+	 buffer_lines.update(off,off+len,text);
        }
-      catch (BadLocationException e) {
-	 LspLog.logE("Problem getting buffer contents " + e);
+      catch (IndexOutOfBoundsException e) {
+	 LspLog.logE("Problem editing private buffer " + e);
        }
-      return "";
     }
 
 }	// end of inner class PrivateBuffer
@@ -0,0 +1,189 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseFileCache.java                                           */
+/*                                                                              */
+/*      Memory budget for the file contents and symbols held by a project       */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *      Files report their estimated size when their cached data is loaded
+ *      or changes; ordinary reads just stamp the file's access time.  When
+ *      the total goes over the budget the least recently used files are
+ *      asked to drop their contents, line offsets and symbols; files that
+ *      are pinned (unsaved edits, open in an editor, locked) refuse and are
+ *      skipped.  Dropped data is reloaded from disk or the server the next
+ *      time it is needed.
+ **/
+
+class LspBaseFileCache implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private Map<LspBaseFile,Long>   file_sizes;
+private long                    total_size;
+private long                    size_budget;
+private boolean                 evict_scheduled;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LspBaseFileCache(long budget)
+{
+   file_sizes = new HashMap<>();
+   total_size = 0;
+   size_budget = budget;
+   evict_scheduled = false;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized long getTotalSize()                { return total_size; }
+
+long getBudget()                                { return size_budget; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Tracking methods                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Note that the file's cached data was used, updating its size.  If
+ *      this puts the total over budget, eviction is done in the background
+ *      so that the caller (which may hold the file's lock) never waits on
+ *      the locks of other files.
+ **/
+
+void noteAccess(LspBaseFile lbf)
+{
+   if (size_budget <= 0) return;
+
+   long sz = lbf.getCacheSize();
+
+   synchronized (this) {
+      Long osz = file_sizes.put(lbf,sz);
+      total_size += sz - (osz == null ? 0 : osz);
+      if (total_size <= size_budget || evict_scheduled) return;
+      evict_scheduled = true;
+    }
+
+   LspBaseMain.getLspMain().startTask(this::evictFiles);
+}
+
+
+synchronized void noteRelease(LspBaseFile lbf)
+{
+   Long osz = file_sizes.remove(lbf);
+   if (osz != null) total_size -= osz;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Eviction methods                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+private void evictFiles()
+{
+   List<LspBaseFile> victims = new ArrayList<>();
+   List<Candidate> cands = new ArrayList<>();
+   long over;
+
+   synchronized (this) {
+      evict_scheduled = false;
+      over = total_size - size_budget;
+      if (over <= 0) return;
+      for (Map.Entry<LspBaseFile,Long> ent : file_sizes.entrySet()) {
+         cands.add(new Candidate(ent.getKey(),ent.getValue()));
+       }
+    }
+
+   // oldest access first; times are copied since reads keep changing them
+   cands.sort(Comparator.comparingLong(Candidate::getAccessTime));
+
+   for (Candidate c : cands) {
+      if (over <= 0) break;
+      if (c.getFile().isPinned()) continue;
+      victims.add(c.getFile());
+      over -= c.getSize();
+    }
+
+   for (LspBaseFile lbf : victims) {
+      if (!lbf.evictCache()) continue;
+      noteRelease(lbf);
+      LspLog.logD("EVICT " + lbf.getPath());
+    }
+}
+
+
+
+private static class Candidate {
+
+   private LspBaseFile for_file;
+   private long file_size;
+   private long access_time;
+
+   Candidate(LspBaseFile lbf,long sz) {
+      for_file = lbf;
+      file_size = sz;
+      access_time = lbf.getLastAccess();
+    }
+
+   LspBaseFile getFile()                        { return for_file; }
+   long getSize()                               { return file_size; }
+   long getAccessTime()                         { return access_time; }
+
+}       // end of inner class Candidate
+
+
+
+}       // end of class LspBaseFileCache
+
+
+
+
+/* end of LspBaseFileCache.java */
@@ -0,0 +1,192 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseFileLoader.java                                          */
+/*                                                                              */
+/*      Load a file into a document and its line offsets in one pass            */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *      The file is read through its channel in blocks and decoded from
+ *      UTF-8 once; each decoded block goes both into the document leaves
+ *      and the line scanner.  The line offsets include the
+ *      implied newline at the end of the document.
+ **/
+
+class LspBaseFileLoader implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LspBaseDocument         file_document;
+private LspBaseLineOffsets      line_offsets;
+
+private static final int READ_SIZE = 65536;
+private static final int DECODE_SIZE = 16384;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private LspBaseFileLoader(LspBaseDocument doc,LspBaseLineOffsets offs)
+{
+   file_document = doc;
+   line_offsets = offs;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+LspBaseDocument getDocument()                   { return file_document; }
+
+LspBaseLineOffsets getLineOffsets()             { return line_offsets; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Loading methods                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+static LspBaseFileLoader load(File f,String newline) throws IOException
+{
+   LspBaseDocument.Builder bldr = new LspBaseDocument.Builder();
+   LspBaseLineOffsets.LineScanner scan = new LspBaseLineOffsets.LineScanner(newline);
+
+   // not mapped: a mapping stays until collected and locks the file on Windows
+   try (FileChannel fc = FileChannel.open(f.toPath(),StandardOpenOption.READ)) {
+      long size = fc.size();
+      if (size > Integer.MAX_VALUE) throw new IOException("File too large: " + f);
+      decode(fc,bldr,scan);
+    }
+
+   return build(bldr,scan,newline);
+}
+
+
+/**
+ *      Set up the line offsets for a document that is already loaded.
+ **/
+
+static LspBaseLineOffsets scanDocument(LspBaseDocument doc,String newline)
+{
+   LspBaseLineOffsets.LineScanner scan = new LspBaseLineOffsets.LineScanner(newline);
+   char [] buf = new char[DECODE_SIZE];
+   int len = doc.length();
+   for (int off = 0; off < len; off += buf.length) {
+      int ct = Math.min(buf.length,len-off);
+      doc.getChars(off,ct,buf);
+      scan.addChars(buf,0,ct);
+    }
+
+   return new LspBaseLineOffsets(newline,scan);
+}
+
+
+static LspBaseFileLoader empty(String newline)
+{
+   return build(new LspBaseDocument.Builder(),
+         new LspBaseLineOffsets.LineScanner(newline),newline);
+}
+
+
+private static void decode(FileChannel fc,LspBaseDocument.Builder bldr,
+      LspBaseLineOffsets.LineScanner scan) throws IOException
+{
+   CharsetDecoder dec = StandardCharsets.UTF_8.newDecoder();
+   dec.onMalformedInput(CodingErrorAction.REPLACE);
+   dec.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+   ByteBuffer in = ByteBuffer.allocate(READ_SIZE);
+   CharBuffer out = CharBuffer.allocate(DECODE_SIZE);
+   boolean eof = false;
+   while (!eof) {
+      eof = fc.read(in) < 0;
+      in.flip();
+      // a character split across reads stays in the buffer for the next one
+      for ( ; ; ) {
+         CoderResult cr = dec.decode(in,out,eof);
+         addDecoded(out,bldr,scan);
+         if (cr.isUnderflow()) break;
+       }
+      in.compact();
+    }
+   while (dec.flush(out).isOverflow()) {
+      addDecoded(out,bldr,scan);
+    }
+   addDecoded(out,bldr,scan);
+}
+
+
+private static void addDecoded(CharBuffer out,LspBaseDocument.Builder bldr,
+      LspBaseLineOffsets.LineScanner scan)
+{
+   out.flip();
+   char [] chars = out.array();
+   int len = out.remaining();
+   bldr.append(chars,0,len);
+   scan.addChars(chars,0,len);
+   out.clear();
+}
+
+
+private static LspBaseFileLoader build(LspBaseDocument.Builder bldr,
+      LspBaseLineOffsets.LineScanner scan,String newline)
+{
+   // the document ends with an implied newline; the offsets must match it
+   char [] eol = { '\n' };
+   scan.addChars(eol,0,1);
+
+   return new LspBaseFileLoader(bldr.build(),new LspBaseLineOffsets(newline,scan));
+}
+
+
+
+}       // end of class LspBaseFileLoader
+
+
+
+
+/* end of LspBaseFileLoader.java */
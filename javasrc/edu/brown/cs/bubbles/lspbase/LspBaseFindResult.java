@@ -185,19 +185,10 @@ private void processResult(JSONObject data,String what)
    if (defrange != null) {
       int offset0 = lbf.mapRangeToStartOffset(defrange);
       int offset1 = lbf.mapRangeToEndOffset(defrange);
-      JSONArray syms = lbf.getSymbols();
-      for (int i = 0; i < syms.length(); ++i) {
-         JSONObject sym = syms.getJSONObject(i);
-         JSONObject rng = sym.getJSONObject("range");
-         int doffset0 = lbf.mapRangeToStartOffset(rng);
-         int doffset1 = lbf.mapRangeToEndOffset(rng);
-         if (offset0 == doffset0 && offset1 == doffset1) {
-            def = sym;
-            break;
-          }
-         if (doffset0 <= offset0 && doffset1 >= offset1) {
-            cont = sym;
-          }
+      LspBaseSymbolRanges rngs = lbf.getSymbolRanges(lbf.getSymbols(true),false);
+      def = rngs.findExact(offset0,offset1);
+      if (def == null) {
+         cont = rngs.findEnclosing(offset0,offset1,LspBaseSymbolRanges.ANY_KIND);
        }
     }
    if (what.equals("DEFS") || what.equals("DECL")) {
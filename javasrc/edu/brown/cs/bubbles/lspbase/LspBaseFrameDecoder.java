@@ -0,0 +1,605 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseFrameDecoder.java                                        */
+/*                                                                              */
+/*      Decode Content-Length framed messages from a server                     */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+class LspBaseFrameDecoder implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private InputStream     input_stream;
+private byte []         ring_buf;
+private int             ring_head;
+private int             ring_count;
+private int             scan_count;
+private byte []         body_buf;
+private int             body_length;
+private BodyReader      body_reader;
+private int             scan_pos;
+private int []          token_buf;
+private int             reply_id;
+private int []          reply_tokens;
+
+private static final int RING_SIZE = 65536;
+private static final int RING_MASK = RING_SIZE - 1;
+private static final byte [] LENGTH_KEY = "content-length".getBytes(StandardCharsets.US_ASCII);
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LspBaseFrameDecoder(InputStream ist)
+{
+   input_stream = ist;
+   ring_buf = new byte[RING_SIZE];
+   ring_head = 0;
+   ring_count = 0;
+   scan_count = 0;
+   body_buf = new byte[RING_SIZE];
+   body_length = 0;
+   body_reader = new BodyReader();
+   token_buf = new int[4096];
+   reply_id = 0;
+   reply_tokens = null;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Body of the current frame.  The buffer is reused by the next call to
+ *      nextFrame() and may be longer than the body.
+ **/
+
+byte [] getBody()                               { return body_buf; }
+
+int getBodyLength()                             { return body_length; }
+
+
+JSONObject parseBody()
+{
+   body_reader.reset(body_buf,body_length);
+   return new JSONObject(new JSONTokener(body_reader));
+}
+
+
+String getBodyString()
+{
+   return new String(body_buf,0,body_length,StandardCharsets.UTF_8);
+}
+
+
+int getReplyId()                                { return reply_id; }
+
+int [] getReplyTokens()                         { return reply_tokens; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Frame reading                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Read the next frame.  Header lines are parsed where they sit in the
+ *      ring buffer; the body is then copied (or read directly) into the
+ *      reused body buffer.  Returns false at end of input.
+ **/
+
+boolean nextFrame() throws IOException
+{
+   int clen = -1;
+
+   for ( ; ; ) {
+      int eol = findLineEnd();
+      while (eol < 0) {
+         if (ring_count == RING_SIZE) {
+            // header line longer than the buffer: discard it
+            consume(ring_count);
+          }
+         if (fill() < 0) return false;
+         eol = findLineEnd();
+       }
+      int llen = eol;
+      if (llen > 0 && byteAt(llen-1) == '\r') --llen;
+      if (llen == 0) {
+         consume(eol+1);
+         if (clen >= 0) break;
+         continue;
+       }
+      int v = parseContentLength(llen);
+      if (v >= 0) clen = v;
+      consume(eol+1);
+    }
+
+   readBody(clen);
+
+   return true;
+}
+
+
+
+private void readBody(int clen) throws IOException
+{
+   if (clen > body_buf.length) {
+      int sz = body_buf.length;
+      while (sz < clen) sz *= 2;
+      body_buf = new byte[sz];
+    }
+
+   int n = Math.min(clen,ring_count);
+   int first = Math.min(n,RING_SIZE - ring_head);
+   System.arraycopy(ring_buf,ring_head,body_buf,0,first);
+   if (n > first) System.arraycopy(ring_buf,0,body_buf,first,n-first);
+   consume(n);
+
+   while (n < clen) {
+      int rln = input_stream.read(body_buf,n,clen-n);
+      if (rln < 0) throw new IOException("End of input inside message");
+      n += rln;
+    }
+
+   body_length = clen;
+}
+
+
+
+private int parseContentLength(int llen)
+{
+   int colon = -1;
+   for (int i = 0; i < llen; ++i) {
+      if (byteAt(i) == ':') {
+         colon = i;
+         break;
+       }
+    }
+   if (colon < 0) return -1;
+
+   int s = 0;
+   int e = colon;
+   while (s < e && byteAt(s) <= ' ') ++s;
+   while (e > s && byteAt(e-1) <= ' ') --e;
+   if (e - s != LENGTH_KEY.length) return -1;
+   for (int i = 0; i < LENGTH_KEY.length; ++i) {
+      int b = byteAt(s+i);
+      if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+      if (b != LENGTH_KEY[i]) return -1;
+    }
+
+   int v = 0;
+   boolean fnd = false;
+   for (int i = colon+1; i < llen; ++i) {
+      int b = byteAt(i);
+      if (b >= '0' && b <= '9') {
+         v = v*10 + (b - '0');
+         fnd = true;
+       }
+      else if (fnd) break;
+    }
+
+   return (fnd ? v : -1);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Scan a semantic token reply without building a DOM                      */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Check if the current body is a successful reply whose result holds a
+ *      token "data" array.  If so, the reply id and the decoded tokens are
+ *      available from getReplyId() and getReplyTokens().  Anything else
+ *      (errors, requests, notifications, unexpected shapes) returns false
+ *      and should be parsed normally.
+ **/
+
+boolean scanTokenReply()
+{
+   reply_id = 0;
+   reply_tokens = null;
+   scan_pos = 0;
+
+   boolean haveid = false;
+   int [] data = null;
+   boolean haveresult = false;
+
+   try {
+      if (nextNonSpace() != '{') return false;
+      ++scan_pos;
+      for ( ; ; ) {
+         int c = nextNonSpace();
+         if (c == '}') break;
+         if (c == ',') {
+            ++scan_pos;
+            continue;
+          }
+         String key = scanKey();
+         if (key == null) return false;
+         switch (key) {
+            case "id" :
+               int v = scanInteger();
+               if (v < 0) return false;
+               reply_id = v;
+               haveid = true;
+               break;
+            case "result" :
+               haveresult = true;
+               c = nextNonSpace();
+               if (c == 'n') {
+                  skipValue();
+                  data = new int[0];
+                }
+               else if (c == '{') {
+                  ++scan_pos;
+                  for ( ; ; ) {
+                     c = nextNonSpace();
+                     if (c == '}') {
+                        ++scan_pos;
+                        break;
+                      }
+                     if (c == ',') {
+                        ++scan_pos;
+                        continue;
+                      }
+                     String rkey = scanKey();
+                     if (rkey == null) return false;
+                     if (rkey.equals("data")) {
+                        data = scanIntArray();
+                        if (data == null) return false;
+                      }
+                     else skipValue();
+                   }
+                }
+               else return false;
+               break;
+            case "jsonrpc" :
+               skipValue();
+               break;
+            default :
+               // error, method, params, ... are not token replies
+               return false;
+          }
+       }
+    }
+   catch (ArrayIndexOutOfBoundsException e) {
+      return false;
+    }
+
+   if (!haveid || !haveresult || data == null) return false;
+
+   reply_tokens = data;
+   return true;
+}
+
+
+
+private int nextNonSpace()
+{
+   while (scan_pos < body_length) {
+      int b = body_buf[scan_pos];
+      if (b != ' ' && b != '\n' && b != '\r' && b != '\t') return b;
+      ++scan_pos;
+    }
+   return -1;
+}
+
+
+private String scanKey()
+{
+   if (nextNonSpace() != '"') return null;
+   int start = ++scan_pos;
+   while (body_buf[scan_pos] != '"') {
+      if (body_buf[scan_pos] == '\\') return null;
+      ++scan_pos;
+    }
+   String key = new String(body_buf,start,scan_pos-start,StandardCharsets.UTF_8);
+   ++scan_pos;
+   if (nextNonSpace() != ':') return null;
+   ++scan_pos;
+   return key;
+}
+
+
+private int scanInteger()
+{
+   boolean quoted = false;
+   if (nextNonSpace() == '"') {
+      quoted = true;
+      ++scan_pos;
+    }
+   int v = 0;
+   boolean fnd = false;
+   while (body_buf[scan_pos] >= '0' && body_buf[scan_pos] <= '9') {
+      v = v*10 + (body_buf[scan_pos++] - '0');
+      fnd = true;
+    }
+   if (quoted) {
+      if (body_buf[scan_pos] != '"') return -1;
+      ++scan_pos;
+    }
+   return (fnd ? v : -1);
+}
+
+
+private int [] scanIntArray()
+{
+   if (nextNonSpace() != '[') return null;
+   ++scan_pos;
+   int ct = 0;
+   for ( ; ; ) {
+      int c = nextNonSpace();
+      if (c == ']') {
+         ++scan_pos;
+         break;
+       }
+      if (c == ',') {
+         ++scan_pos;
+         continue;
+       }
+      boolean neg = false;
+      if (c == '-') {
+         neg = true;
+         ++scan_pos;
+       }
+      int v = 0;
+      boolean fnd = false;
+      while (body_buf[scan_pos] >= '0' && body_buf[scan_pos] <= '9') {
+         v = v*10 + (body_buf[scan_pos++] - '0');
+         fnd = true;
+       }
+      if (!fnd) return null;
+      if (ct >= token_buf.length) {
+         int [] nbuf = new int[token_buf.length*2];
+         System.arraycopy(token_buf,0,nbuf,0,ct);
+         token_buf = nbuf;
+       }
+      token_buf[ct++] = (neg ? -v : v);
+    }
+
+   int [] rslt = new int[ct];
+   System.arraycopy(token_buf,0,rslt,0,ct);
+   return rslt;
+}
+
+
+private void skipValue()
+{
+   int depth = 0;
+   for ( ; ; ) {
+      int c = nextNonSpace();
+      if (c < 0) throw new ArrayIndexOutOfBoundsException();
+      if (c == '"') {
+         ++scan_pos;
+         while (body_buf[scan_pos] != '"') {
+            if (body_buf[scan_pos] == '\\') ++scan_pos;
+            ++scan_pos;
+          }
+         ++scan_pos;
+       }
+      else if (c == '{' || c == '[') {
+         ++depth;
+         ++scan_pos;
+       }
+      else if (c == '}' || c == ']') {
+         if (depth == 0) return;
+         --depth;
+         ++scan_pos;
+       }
+      else if (c == ',' || c == ':') {
+         if (depth == 0) return;
+         ++scan_pos;
+       }
+      else {
+         ++scan_pos;
+         while (scan_pos < body_length) {
+            int b = body_buf[scan_pos];
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' ||
+                  b == '\r' || b == '\t') break;
+            ++scan_pos;
+          }
+       }
+      if (depth == 0 && c != ',' && c != ':') {
+         return;
+       }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Ring buffer management                                                  */
+/*                                                                              */
+/********************************************************************************/
+
+private int byteAt(int idx)
+{
+   return ring_buf[(ring_head + idx) & RING_MASK];
+}
+
+
+private int findLineEnd()
+{
+   while (scan_count < ring_count) {
+      if (byteAt(scan_count) == '\n') return scan_count;
+      ++scan_count;
+    }
+   return -1;
+}
+
+
+private void consume(int n)
+{
+   ring_head = (ring_head + n) & RING_MASK;
+   ring_count -= n;
+   scan_count = 0;
+}
+
+
+private int fill() throws IOException
+{
+   int tail = (ring_head + ring_count) & RING_MASK;
+   int space = RING_SIZE - ring_count;
+   if (tail + space > RING_SIZE) space = RING_SIZE - tail;
+   int rln = input_stream.read(ring_buf,tail,space);
+   if (rln > 0) ring_count += rln;
+   return rln;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Reader to decode UTF-8 body directly for the JSON tokenizer             */
+/*                                                                              */
+/********************************************************************************/
+
+private static class BodyReader extends Reader {
+
+   private byte [] read_buf;
+   private int read_pos;
+   private int read_end;
+   private char pending_char;
+   private int mark_pos;
+   private char mark_pending;
+
+   BodyReader() {
+      reset(new byte[0],0);
+    }
+
+   void reset(byte [] buf,int len) {
+      read_buf = buf;
+      read_pos = 0;
+      read_end = len;
+      pending_char = 0;
+      mark_pos = 0;
+      mark_pending = 0;
+    }
+
+   @Override public boolean markSupported()             { return true; }
+
+   @Override public void mark(int limit) {
+      mark_pos = read_pos;
+      mark_pending = pending_char;
+    }
+
+   @Override public void reset() {
+      read_pos = mark_pos;
+      pending_char = mark_pending;
+    }
+
+   @Override public int read() {
+      if (pending_char != 0) {
+         char c = pending_char;
+         pending_char = 0;
+         return c;
+       }
+      if (read_pos >= read_end) return -1;
+
+      int b = read_buf[read_pos++];
+      if (b >= 0) return b;
+
+      int cp;
+      int need;
+      if ((b & 0xe0) == 0xc0) {
+         cp = b & 0x1f;
+         need = 1;
+       }
+      else if ((b & 0xf0) == 0xe0) {
+         cp = b & 0x0f;
+         need = 2;
+       }
+      else if ((b & 0xf8) == 0xf0) {
+         cp = b & 0x07;
+         need = 3;
+       }
+      else return 0xfffd;
+
+      for (int i = 0; i < need; ++i) {
+         if (read_pos >= read_end) return 0xfffd;
+         int nb = read_buf[read_pos];
+         if ((nb & 0xc0) != 0x80) return 0xfffd;
+         ++read_pos;
+         cp = (cp << 6) | (nb & 0x3f);
+       }
+
+      if (cp >= 0x10000) {
+         pending_char = Character.lowSurrogate(cp);
+         return Character.highSurrogate(cp);
+       }
+      return cp;
+    }
+
+   @Override public int read(char [] cbuf,int off,int len) {
+      if (len == 0) return 0;
+      int n = 0;
+      while (n < len) {
+         if (pending_char == 0 && read_pos < read_end && read_buf[read_pos] >= 0) {
+            cbuf[off+n++] = (char) read_buf[read_pos++];
+            continue;
+          }
+         int c = read();
+         if (c < 0) break;
+         cbuf[off+n++] = (char) c;
+       }
+      return (n == 0 ? -1 : n);
+    }
+
+   @Override public void close()                        { }
+
+}       // end of inner class BodyReader
+
+
+
+}       // end of class LspBaseFrameDecoder
+
+
+
+
+/* end of LspBaseFrameDecoder.java */
@@ -103,8 +103,32 @@ LspBaseLanguageData(String name,String exec,String dap,boolean single) {
 /********************************************************************************/
 
 String getName()                                { return language_name; }
-String getLspExecString()                       { return lspexec_string; }
 String getDapExecString()                       { return dapexec_string; }
+
+
+/**
+ *      Command to run the language server.  If a replay capture is given
+ *      (lsp.replayFile or the REPLAY system property), the server is
+ *      replaced by LspBaseReplay running in a separate JVM.
+ **/
+
+String getLspExecString()
+{
+   String replay = System.getProperty("edu.brown.cs.bubbles.lspbase.REPLAY");
+   if (replay == null) replay = getCapabilityString("lsp.replayFile");
+   if (replay == null) return lspexec_string;
+
+   File java = new File(System.getProperty("java.home"),"bin");
+   java = new File(java,"java");
+   String cmd = java.getPath();
+   cmd += " -cp " + System.getProperty("java.class.path");
+   cmd += " " + LspBaseReplay.class.getName();
+   String speed = System.getProperty("edu.brown.cs.bubbles.lspbase.REPLAYSPEED");
+   if (speed != null) cmd += " -speed " + speed;
+   cmd += " " + replay;
+
+   return cmd;
+}
 boolean isSingleWorkspace()                     { return single_workspace; }
 
 JSONObject getDebugConfiguration()              { return dap_configuration; }
@@ -186,6 +210,19 @@ String getCapabilityString(String key)
 }
 
 
+/**
+ *      Position encoding chosen by the server in its initialize result;
+ *      utf-16 if it did not say.
+ **/
+
+String getPositionEncoding()
+{
+   String enc = getCapabilityString("positionEncoding");
+   if (enc == null) return LspBaseColumnMap.ENCODING_UTF16;
+   return enc;
+}
+
+
 boolean getCapabilityBool(String key)
 {
    return getCapabilityBool(key,false);
@@ -26,6 +26,13 @@ import java.io.IOException;
 import java.io.Reader;
 import java.util.Arrays;
 
+/**
+ *      Line i (1-based) starts at findOffset(i); line 0 is at -1 and the
+ *      last entry is the end of the file.  The lines are kept as a
+ *      persistent balanced tree of line lengths with subtree sums, so an
+ *      edit costs O(log n) and builds a new tree that is then published.
+ *      Lookups read the published tree without locking.
+ **/
 
 class LspBaseLineOffsets implements LspBaseConstants
 {
@@ -37,9 +44,7 @@ class LspBaseLineOffsets implements LspBaseConstants
 /*                                                                              */
 /********************************************************************************/
 
-private int [] ide_offset;
-private int max_ide;
-private int max_char;
+private volatile Node line_tree;
 private int newline_adjust;
 
 
@@ -53,15 +58,41 @@ private int newline_adjust;
 LspBaseLineOffsets(String newline,Reader input)
 {
    newline_adjust = newline.length() - 1;
-   ide_offset = new int[128];
-   ide_offset[0] = -1;
-   max_ide = 1;
-   max_char = 0;
    
    setupIde(input,newline);
 }
 
 
+/**
+ *      Create from a scanner that has already seen the whole text.
+ **/
+
+LspBaseLineOffsets(String newline,LineScanner scan)
+{
+   newline_adjust = newline.length() - 1;
+
+   line_tree = scan.buildTree();
+}
+
+
+private LspBaseLineOffsets(int adjust,Node root)
+{
+   newline_adjust = adjust;
+   line_tree = root;
+}
+
+
+/**
+ *      Independent copy that initially shares all of its tree with this
+ *      one; updates to either only copy the paths they change.
+ **/
+
+LspBaseLineOffsets copy()
+{
+   return new LspBaseLineOffsets(newline_adjust,line_tree);
+}
+
+
 
    
 /********************************************************************************/
@@ -72,38 +103,38 @@ LspBaseLineOffsets(String newline,Reader input)
 
 private void setupIde(Reader r,String nl)
 {
-   addIde(0);
-   
-   boolean lastcr = false;
+   LineScanner scan = new LineScanner(nl);
+   char [] buf = new char[8192];
+
    try {
-      int i = 0;
-      for ( ; ; ++i) {
-	 int ch = r.read();
-	 if (ch < 0) break;
-	 if (nl.equals("\r")) {
-	    if (ch == '\r') addIde(i+1);
-	  }
-	 else {
-	    if (ch == '\n') addIde(i+1);
-	    else if (lastcr) addIde(i);
-	    lastcr = (ch == '\r');
-	  }
+      for ( ; ; ) {
+	 int ct = r.read(buf);
+	 if (ct < 0) break;
+	 scan.addChars(buf,0,ct);
        }
-      addIde(i);
-      max_char = i;
       r.close();
     }
    catch (IOException e) {
       LspLog.logE("Problem reading input file: " + e);
     }
+
+   line_tree = scan.buildTree();
 }
 
 
+/**
+ *      Build the tree from line start offsets (the last one being the end
+ *      of the file).  Each entry becomes a line whose length reaches to
+ *      the next start; the final end-of-file entry has length 0.
+ **/
 
-private void addIde(int i)
+private static Node buildTree(int [] starts,int n)
 {
-   grow(max_ide+1);
-   ide_offset[max_ide++] = i;
+   int [] lens = new int[n];
+   for (int i = 0; i < n-1; ++i) lens[i] = starts[i+1] - starts[i];
+   lens[n-1] = 0;
+
+   return build(lens,0,n);
 }
 
 
@@ -115,46 +146,50 @@ private void addIde(int i)
 /*										*/
 /********************************************************************************/
 
-synchronized void update(int soff,int eoff,String cnts)
+/**
+ *      Replace the text from soff to eoff with cnts.  This is not
+ *      synchronized: update a copy that other threads can't see yet and
+ *      then publish it in place of the original.
+ **/
+
+void update(int soff,int eoff,String cnts)
 {
    if (cnts == null && soff == eoff) return;
    
+   Node root = line_tree;
+   int n = count(root);
+
    int ct = 0;
    if (cnts != null) {
       for (int idx = cnts.indexOf('\n'); idx >= 0; idx = cnts.indexOf('\n',idx+1)) ++ct;
     }
    
-   int idx0 = findIndex(soff);
-   int idx1 = findIndex(eoff);
-   int oct = idx1-idx0;
+   int idx0 = findIndex(root,soff);
+   int idx1 = findIndex(root,eoff);
    int delta = 0;
    if (cnts != null) delta = cnts.length() - (eoff-soff);
    else delta = soff - eoff;
-   
-   LspLog.logD("UPDATE LINE OFFSETS " + soff + " " + eoff + " " + ct + " " + delta + " " + oct);
-   
-   grow(max_ide + ct - oct);	     // ensure we fit
-   if (ct > oct) {
-      for (int i = max_ide-1; i > idx1; --i) {
-	 ide_offset[i+ct-oct] = ide_offset[i] + delta;
-       }
-    }
-   else if (ct < oct || delta != 0) {
-      for (int i = idx1+1; i < max_ide; ++i) {
-	 ide_offset[i+ct-oct] = ide_offset[i] + delta;
-       }
-    }
-   
-   max_ide += ct-oct;
-   
-   int idx2 = idx0+1;
+
+   // lines idx0..idx1 are replaced by ct+1 new lines
+   int [] starts = new int[ct+2];
+   int nstart = 0;
+   starts[nstart++] = prefix(root,idx0-1);
    if (cnts != null) {
       int lct = newline_adjust;
       for (int idx = cnts.indexOf('\n'); idx >= 0; idx = cnts.indexOf('\n',idx+1)) {
-	 ide_offset[idx2] = soff + idx + 1 + lct;
-	 ++idx2;
+	 starts[nstart++] = soff + idx + 1 + lct;
        }
     }
+   boolean last = (idx1 >= n);
+   if (!last) starts[nstart++] = prefix(root,idx1) + delta;
+   else starts[nstart++] = starts[nstart-2];
+
+   int [] lens = new int[ct+1];
+   for (int i = 0; i <= ct; ++i) lens[i] = starts[i+1] - starts[i];
+
+   Node [] p1 = split(root,idx0-1);
+   Node [] p2 = split(p1[1],idx1-idx0+1);
+   line_tree = join(join(p1[0],build(lens,0,lens.length)),p2[1]);
 }
 
 
@@ -164,57 +199,292 @@ synchronized void update(int soff,int eoff,String cnts)
 /*										*/
 /********************************************************************************/
 
-synchronized int findOffset(int line)
+int findOffset(int line)
 {
    if (line < 0) return 0;
-   if (line >= max_ide) return max_char;
-   return ide_offset[line];
+   if (line == 0) return -1;
+
+   Node root = line_tree;
+   if (line > count(root)) return sum(root);
+   return prefix(root,line-1);
+}
+
+
+
+int getLineCount()
+{
+   return count(line_tree);
 }
 
 
 
-synchronized int findLine(int off)
+int findLine(int off)
 {
-   int sidx = Arrays.binarySearch(ide_offset,0,max_ide,off);
-   if (sidx < 0) {
-      sidx = -sidx - 2;
+   return findIndex(line_tree,off);
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Helper methods for searching the tree					*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *      Find the line starting at off (the first one if several do), else
+ *      the last line starting before off.
+ **/
+
+private static int findIndex(Node root,int off)
+{
+   if (off < 0) return 0;
+
+   int q = countBefore(root,off);
+   if (q < count(root) && prefix(root,q) == off) return q+1;
+   return q;
+}
+
+
+/**
+ *      Number of lines whose start is before off.
+ **/
+
+private static int countBefore(Node n,int off)
+{
+   int rslt = 0;
+   int base = 0;
+   while (n != null) {
+      int start = base + sum(n.getLeft());
+      if (start < off) {
+	 rslt += count(n.getLeft()) + 1;
+	 base = start + n.getValue();
+	 n = n.getRight();
+       }
+      else n = n.getLeft();
     }
-   if (sidx < 0) {
-      if (off < 0) return 0;
-      if (off > ide_offset[max_ide-1]) return max_ide;
+   return rslt;
+}
+
+
+/**
+ *      Sum of the first k line lengths, i.e. the start of line k+1.
+ **/
+
+private static int prefix(Node n,int k)
+{
+   int rslt = 0;
+   while (n != null && k > 0) {
+      int lc = count(n.getLeft());
+      if (k <= lc) n = n.getLeft();
+      else {
+	 rslt += sum(n.getLeft()) + n.getValue();
+	 k -= lc + 1;
+	 n = n.getRight();
+       }
     }
-   return sidx;
+   return rslt;
 }
 
 
 
 /********************************************************************************/
 /*										*/
-/*	Helper methods for maintaining the offset arrays			*/
+/*	Persistent tree operations						*/
 /*										*/
 /********************************************************************************/
 
-private int findIndex(int off)
+private static int count(Node n)		{ return n == null ? 0 : n.getCount(); }
+private static int sum(Node n)			{ return n == null ? 0 : n.getSum(); }
+private static int height(Node n)		{ return n == null ? 0 : n.getHeight(); }
+
+
+private static Node build(int [] vals,int from,int to)
 {
-   int sidx = Arrays.binarySearch(ide_offset,0,max_ide,off);
-   if (sidx > 0) return sidx;
-   sidx = -sidx - 2;
-   if (sidx < 0) sidx = 0;
-   return sidx;
+   if (from >= to) return null;
+   int mid = (from + to) >>> 1;
+   return new Node(build(vals,from,mid),vals[mid],build(vals,mid+1,to));
 }
 
 
+/**
+ *      Split into the first k entries and the rest.
+ **/
+
+private static Node [] split(Node n,int k)
+{
+   Node [] rslt = new Node[2];
+   if (n == null) return rslt;
+   if (k <= 0) {
+      rslt[1] = n;
+      return rslt;
+    }
+   if (k >= n.getCount()) {
+      rslt[0] = n;
+      return rslt;
+    }
+
+   int lc = count(n.getLeft());
+   if (k <= lc) {
+      Node [] sub = split(n.getLeft(),k);
+      rslt[0] = sub[0];
+      rslt[1] = joinMid(sub[1],n.getValue(),n.getRight());
+    }
+   else {
+      Node [] sub = split(n.getRight(),k-lc-1);
+      rslt[0] = joinMid(n.getLeft(),n.getValue(),sub[0]);
+      rslt[1] = sub[1];
+    }
+   return rslt;
+}
 
 
-private void grow(int max)
+private static Node join(Node a,Node b)
 {
-   int sz = ide_offset.length;
-   if (sz > max) return;
-   while (sz < max) sz *= 2;
-   ide_offset = Arrays.copyOf(ide_offset,sz);
+   if (a == null) return b;
+   if (b == null) return a;
+
+   Node [] sp = split(a,count(a)-1);
+   return joinMid(sp[0],sum(sp[1]),b);
 }
 
 
+private static Node joinMid(Node l,int v,Node r)
+{
+   int hl = height(l);
+   int hr = height(r);
+
+   if (hl > hr + 1) {
+      return rebalance(l.getLeft(),l.getValue(),joinMid(l.getRight(),v,r));
+    }
+   if (hr > hl + 1) {
+      return rebalance(joinMid(l,v,r.getLeft()),r.getValue(),r.getRight());
+    }
+   return new Node(l,v,r);
+}
+
+
+private static Node rebalance(Node l,int v,Node r)
+{
+   int hl = height(l);
+   int hr = height(r);
+
+   if (hl > hr + 1) {
+      if (height(l.getLeft()) >= height(l.getRight())) {
+	 return new Node(l.getLeft(),l.getValue(),new Node(l.getRight(),v,r));
+       }
+      Node lr = l.getRight();
+      return new Node(new Node(l.getLeft(),l.getValue(),lr.getLeft()),lr.getValue(),
+	    new Node(lr.getRight(),v,r));
+    }
+   if (hr > hl + 1) {
+      if (height(r.getRight()) >= height(r.getLeft())) {
+	 return new Node(new Node(l,v,r.getLeft()),r.getValue(),r.getRight());
+       }
+      Node rl = r.getLeft();
+      return new Node(new Node(l,v,rl.getLeft()),rl.getValue(),
+	    new Node(rl.getRight(),r.getValue(),r.getRight()));
+    }
+   return new Node(l,v,r);
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Scanner to find line starts as text is read				*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *      Collects line starts from text handed to it in pieces, so a loader
+ *      can find the lines while it decodes the file.
+ **/
+
+static class LineScanner {
+
+   private boolean cr_only;
+   private boolean last_cr;
+   private int [] line_starts;
+   private int num_starts;
+   private int char_count;
+
+   LineScanner(String nl) {
+      cr_only = nl.equals("\r");
+      last_cr = false;
+      line_starts = new int[128];
+      num_starts = 0;
+      char_count = 0;
+      addStart(0);
+    }
+
+   void addChars(char [] buf,int off,int len) {
+      for (int j = 0; j < len; ++j) {
+	 char ch = buf[off+j];
+	 int i = char_count++;
+	 if (cr_only) {
+	    if (ch == '\r') addStart(i+1);
+	  }
+	 else {
+	    if (ch == '\n') addStart(i+1);
+	    else if (last_cr) addStart(i);
+	    last_cr = (ch == '\r');
+	  }
+       }
+    }
+
+   private void addStart(int off) {
+      if (num_starts >= line_starts.length) {
+	 line_starts = Arrays.copyOf(line_starts,num_starts*2);
+       }
+      line_starts[num_starts++] = off;
+    }
+
+   Node buildTree() {
+      int n = num_starts;
+      addStart(char_count);
+      num_starts = n;
+      return LspBaseLineOffsets.buildTree(line_starts,n+1);
+    }
+
+}	// end of inner class LineScanner
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Tree node: one line length						*/
+/*										*/
+/********************************************************************************/
+
+private static class Node {
+
+   private Node left_node;
+   private Node right_node;
+   private int line_length;
+   private int node_count;
+   private int node_sum;
+   private int node_height;
+
+   Node(Node l,int v,Node r) {
+      left_node = l;
+      right_node = r;
+      line_length = v;
+      node_count = count(l) + 1 + count(r);
+      node_sum = sum(l) + v + sum(r);
+      node_height = Math.max(height(l),height(r)) + 1;
+    }
+
+   Node getLeft()				{ return left_node; }
+   Node getRight()				{ return right_node; }
+   int getValue()				{ return line_length; }
+   int getCount()				{ return node_count; }
+   int getSum() 				{ return node_sum; }
+   int getHeight()				{ return node_height; }
+
+}	// end of inner class Node
+
+
 
 }       // end of class LspBaseLineOffsets
 
@@ -26,6 +26,7 @@ import java.io.File;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
@@ -175,6 +176,14 @@ private void scanArgs(String [] args)
 	    work_directory = new File(args[++i]);
 	    work_directory = IvyFile.getCanonical(work_directory);
 	  }
+	 else if (args[i].startsWith("-logsize") && i+1 < args.length) { // -logsize <MB>
+	    try {
+	       LspLog.setMaxLogSize(Long.parseLong(args[++i])*1024*1024);
+	     }
+	    catch (NumberFormatException e) {
+	       badArgs();
+	     }
+	  }
 	 else if (args[i].startsWith("-log") && i+1 < args.length) {     // -log <logfile>
 	    LspLog.setLogFile(new File(args[++i]));
 	    LspLog.setUseStdErr(false);
@@ -326,6 +335,14 @@ LspBaseProtocol findProtocol(File ws,String lang,List<LspBasePathSpec> paths)
 }
 
 
+Collection<LspBaseProtocol> getAllProtocols()
+{
+   synchronized (workspace_protocols) {
+      return new LinkedHashSet<>(workspace_protocols.values());
+    }
+}
+
+
 String getBaseLanguage()
 {
    return base_language;
@@ -0,0 +1,494 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseMessageWriter.java                                       */
+/*                                                                              */
+/*      Frame and write JSON-RPC messages to a server                           */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONObject;
+
+class LspBaseMessageWriter implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private OutputStream    output_stream;
+private OutputStream    copy_stream;
+private FrameBuffer     frame_buffer;
+private Deque<Outbound> output_queue;
+private int             queue_limit;
+private boolean         is_closed;
+private boolean         is_writing;
+private LspBaseStatistics message_stats;
+private LspBaseWireCapture wire_capture;
+
+private static final int HEADER_SPACE = 32;
+private static final byte [] HEADER_PREFIX = { 'C','o','n','t','e','n','t','-',
+   'L','e','n','g','t','h',':',' ' };
+private static final int MAX_BATCH_MESSAGES = 64;
+private static final int MAX_BATCH_BYTES = 1024*1024;
+private static final long CLOSE_WAIT = 2000;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LspBaseMessageWriter(String name,OutputStream ost,OutputStream copy,int limit,
+      LspBaseStatistics stats)
+{
+   message_stats = stats;
+   wire_capture = null;
+   output_stream = ost;
+   copy_stream = copy;
+   frame_buffer = new FrameBuffer();
+   output_queue = new ArrayDeque<>();
+   queue_limit = Math.max(1,limit);
+   is_closed = false;
+   is_writing = false;
+
+   WriterThread wt = new WriterThread(name);
+   wt.start();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Queueing methods                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Queue a message to be written by the writer thread.  The message
+ *      is serialized here, so the caller may go on changing the objects it
+ *      holds.  If a key is given, any message with the same key that is
+ *      still waiting in the queue is dropped since this one supersedes it.
+ *      The caller only waits if the queue is full.
+ **/
+
+void queueMessage(JSONObject jo,String key)
+{
+   Outbound msg = null;
+   try {
+      msg = new Outbound(jo,key);
+    }
+   catch (RuntimeException e) {
+      LspLog.logE("Problem encoding message",e);
+      return;
+    }
+
+   synchronized (output_queue) {
+      if (key != null) {
+         for (Iterator<Outbound> it = output_queue.iterator(); it.hasNext(); ) {
+            Outbound ob = it.next();
+            if (key.equals(ob.getKey())) it.remove();
+          }
+       }
+      while (output_queue.size() >= queue_limit && !is_closed) {
+         try {
+            output_queue.wait(1000);
+          }
+         catch (InterruptedException e) { }
+       }
+      if (is_closed) {
+         LspLog.logE("Message " + msg.getWhat() + " queued after close");
+         return;
+       }
+      output_queue.add(msg);
+      output_queue.notifyAll();
+    }
+}
+
+
+void queueMessage(JSONObject jo)
+{
+   queueMessage(jo,null);
+}
+
+
+/**
+ *      Remove a request with the given id if it has not been written yet.
+ *      Returns true if it was removed.
+ **/
+
+boolean dropQueued(Object id)
+{
+   if (id == null) return false;
+
+   synchronized (output_queue) {
+      for (Iterator<Outbound> it = output_queue.iterator(); it.hasNext(); ) {
+         Outbound ob = it.next();
+         if (id.equals(ob.getRequestId())) {
+            it.remove();
+            output_queue.notifyAll();
+            return true;
+          }
+       }
+    }
+
+   return false;
+}
+
+
+int getQueueDepth()
+{
+   synchronized (output_queue) {
+      return output_queue.size();
+    }
+}
+
+
+void setCapture(LspBaseWireCapture cap)
+{
+   wire_capture = cap;
+}
+
+
+/**
+ *      Stop accepting messages, waiting a bit for those already queued
+ *      to be written.
+ **/
+
+void close()
+{
+   long end = System.currentTimeMillis() + CLOSE_WAIT;
+   synchronized (output_queue) {
+      is_closed = true;
+      output_queue.notifyAll();
+      while (!output_queue.isEmpty() || is_writing) {
+         long delta = end - System.currentTimeMillis();
+         if (delta <= 0) break;
+         try {
+            output_queue.wait(delta);
+          }
+         catch (InterruptedException e) { }
+       }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Write a batch of framed messages.  Each body is encoded as UTF-8
+ *      directly into a reused buffer with its Content-Length header (the
+ *      encoded byte count) in front of it, so that the whole batch goes out
+ *      with one write and one flush.
+ **/
+
+private void writeMessages(List<Outbound> msgs) throws IOException
+{
+   frame_buffer.reset();
+   for (Outbound ob : msgs) {
+      int len = frame_buffer.addFrame(ob.getText());
+      if (wire_capture != null) frame_buffer.captureLast(wire_capture,len);
+      if (message_stats != null) message_stats.noteBytesOut(ob.getWhat(),len);
+      if (frame_buffer.isFull()) {
+         flushFrames();
+         frame_buffer.reset();
+       }
+    }
+
+   flushFrames();
+}
+
+
+private void flushFrames() throws IOException
+{
+   if (frame_buffer.isEmpty()) return;
+
+   frame_buffer.writeTo(output_stream);
+   output_stream.flush();
+
+   if (copy_stream != null) {
+      try {
+         frame_buffer.writeTo(copy_stream);
+         copy_stream.flush();
+       }
+      catch (IOException e) {
+         copy_stream = null;
+       }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Writer thread                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+private class WriterThread extends Thread {
+
+   WriterThread(String name) {
+      super("LSP_Message_Writer_" + name);
+      setDaemon(true);
+    }
+
+   @Override public void run() {
+      List<Outbound> batch = new ArrayList<>();
+      for ( ; ; ) {
+         batch.clear();
+         synchronized (output_queue) {
+            while (output_queue.isEmpty()) {
+               if (is_closed) return;
+               try {
+                  output_queue.wait();
+                }
+               catch (InterruptedException e) { }
+             }
+            while (!output_queue.isEmpty() && batch.size() < MAX_BATCH_MESSAGES) {
+               batch.add(output_queue.poll());
+             }
+            is_writing = true;
+            output_queue.notifyAll();
+          }
+         try {
+            writeMessages(batch);
+          }
+         catch (IOException e) {
+            LspLog.logE("Problem writing messages",e);
+          }
+         catch (RuntimeException e) {
+            LspLog.logE("Problem writing messages",e);
+          }
+         finally {
+            synchronized (output_queue) {
+               is_writing = false;
+               output_queue.notifyAll();
+             }
+          }
+       }
+    }
+
+}       // end of inner class WriterThread
+
+
+
+private static class Outbound {
+
+   private String out_text;
+   private String out_key;
+   private String out_what;
+   private Object request_id;
+
+   Outbound(JSONObject jo,String key) {
+      // toString hides encoding errors by returning null; write reports them
+      out_text = jo.write(new StringWriter()).toString();
+      out_key = key;
+      out_what = jo.optString("method",null);
+      if (out_what == null) out_what = jo.optString("command","*REPLY*");
+      request_id = (jo.has("method") ? jo.opt("id") : null);
+    }
+
+   String getText()                             { return out_text; }
+   String getKey()                              { return out_key; }
+   String getWhat()                             { return out_what; }
+   Object getRequestId()                        { return request_id; }
+
+}       // end of inner class Outbound
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Buffer that encodes UTF-8 in place                                      */
+/*                                                                              */
+/********************************************************************************/
+
+private static class FrameBuffer extends Writer {
+
+   private byte [] byte_buf;
+   private int buf_end;
+   private int frame_start;
+   private char high_surrogate;
+
+   FrameBuffer() {
+      byte_buf = new byte[16384];
+      reset();
+    }
+
+   void reset() {
+      buf_end = 0;
+      frame_start = -1;
+      high_surrogate = 0;
+    }
+
+   boolean isFull() {
+      return buf_end >= MAX_BATCH_BYTES;
+    }
+
+   boolean isEmpty() {
+      return frame_start < 0;
+    }
+
+   int addFrame(String text) {
+      int hdr = buf_end;
+      ensureSpace(HEADER_SPACE);
+      buf_end += HEADER_SPACE;
+      int body = buf_end;
+      high_surrogate = 0;
+      write(text,0,text.length());
+      if (high_surrogate != 0) {
+         high_surrogate = 0;
+         addByte('?');
+       }
+      int len = buf_end - body;
+
+      // build the header backwards so it ends right before the body
+      int pos = body;
+      byte_buf[--pos] = '\n';
+      byte_buf[--pos] = '\r';
+      byte_buf[--pos] = '\n';
+      byte_buf[--pos] = '\r';
+      int v = len;
+      do {
+         byte_buf[--pos] = (byte) ('0' + v % 10);
+         v /= 10;
+       }
+      while (v > 0);
+      pos -= HEADER_PREFIX.length;
+      System.arraycopy(HEADER_PREFIX,0,byte_buf,pos,HEADER_PREFIX.length);
+
+      if (frame_start < 0) {
+         frame_start = pos;
+       }
+      else if (pos > hdr) {
+         // close the gap after the previous frame
+         System.arraycopy(byte_buf,pos,byte_buf,hdr,buf_end-pos);
+         buf_end -= pos - hdr;
+       }
+
+      return len;
+    }
+
+   void captureLast(LspBaseWireCapture cap,int len) {
+      cap.record(LspBaseWireCapture.FROM_CLIENT,byte_buf,buf_end-len,len);
+    }
+
+   void writeTo(OutputStream ost) throws IOException {
+      ost.write(byte_buf,frame_start,buf_end-frame_start);
+    }
+
+   @Override public void write(int c) {
+      addChar((char) c);
+    }
+
+   @Override public void write(char [] cbuf,int off,int len) {
+      ensureSpace(len);
+      for (int i = 0; i < len; ++i) addChar(cbuf[off+i]);
+    }
+
+   @Override public void write(String s,int off,int len) {
+      ensureSpace(len);
+      for (int i = 0; i < len; ++i) addChar(s.charAt(off+i));
+    }
+
+   @Override public void flush()                        { }
+
+   @Override public void close()                        { }
+
+   private void addChar(char c) {
+      if (high_surrogate != 0) {
+         char hs = high_surrogate;
+         high_surrogate = 0;
+         if (Character.isLowSurrogate(c)) {
+            int cp = Character.toCodePoint(hs,c);
+            ensureSpace(4);
+            byte_buf[buf_end++] = (byte) (0xf0 | (cp >> 18));
+            byte_buf[buf_end++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            byte_buf[buf_end++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            byte_buf[buf_end++] = (byte) (0x80 | (cp & 0x3f));
+            return;
+          }
+         addByte('?');
+       }
+
+      if (c < 0x80) {
+         addByte(c);
+       }
+      else if (c < 0x800) {
+         ensureSpace(2);
+         byte_buf[buf_end++] = (byte) (0xc0 | (c >> 6));
+         byte_buf[buf_end++] = (byte) (0x80 | (c & 0x3f));
+       }
+      else if (Character.isHighSurrogate(c)) {
+         high_surrogate = c;
+       }
+      else if (Character.isLowSurrogate(c)) {
+         addByte('?');
+       }
+      else {
+         ensureSpace(3);
+         byte_buf[buf_end++] = (byte) (0xe0 | (c >> 12));
+         byte_buf[buf_end++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+         byte_buf[buf_end++] = (byte) (0x80 | (c & 0x3f));
+       }
+    }
+
+   private void addByte(int b) {
+      if (buf_end >= byte_buf.length) ensureSpace(1);
+      byte_buf[buf_end++] = (byte) b;
+    }
+
+   private void ensureSpace(int n) {
+      if (buf_end + n <= byte_buf.length) return;
+      int sz = byte_buf.length * 2;
+      while (sz < buf_end + n) sz *= 2;
+      byte [] nbuf = new byte[sz];
+      System.arraycopy(byte_buf,0,nbuf,0,buf_end);
+      byte_buf = nbuf;
+    }
+
+}       // end of inner class FrameBuffer
+
+
+
+}       // end of class LspBaseMessageWriter
+
+
+
+
+/* end of LspBaseMessageWriter.java */
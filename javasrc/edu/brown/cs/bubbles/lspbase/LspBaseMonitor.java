@@ -222,6 +222,9 @@ private String handleCommand(String cmd,String proj,Element xml) throws LspBaseE
       case "LANGUAGEDATA" :
 	 getLanguageData(proj,xw);
 	 break;
+      case "STATISTICS" :
+         handleStatistics(IvyXml.getAttrBool(xml,"RESET"),xw);
+         break;
          
       case "PROJECTS" :
       case "OPENPROJECT" :
@@ -298,8 +301,8 @@ private String handleCommand(String cmd,String proj,Element xml) throws LspBaseE
    
    xw.end("RESULT");
    
-   LspLog.logD("Result = " + xw.toString());
    String rslt = xw.toString();
+   LspLog.logD(() -> "Result = " + rslt);
    
    xw.close();
    return rslt;
@@ -381,6 +384,28 @@ private void handleGetHost(IvyXmlWriter xw)
 }
 
 
+/**
+ *      Report per-method request statistics for each server connection.
+ **/
+
+private void handleStatistics(boolean reset,IvyXmlWriter xw)
+{
+   xw.begin("STATISTICS");
+   for (LspBaseProtocol proto : lsp_base.getAllProtocols()) {
+      LspBaseStatistics stats = proto.getStatistics();
+      stats.outputXml(xw,proto.getOutputQueueDepth());
+      if (reset) stats.reset();
+    }
+   for (LspBaseDebugProtocol proto : lsp_base.getDebugManager().getAllDebugProtocols()) {
+      LspBaseStatistics stats = proto.getStatistics();
+      stats.outputXml(xw,proto.getOutputQueueDepth());
+      if (reset) stats.reset();
+    }
+   xw.end("STATISTICS");
+}
+
+
+
 /********************************************************************************/
 /*										*/
 /*	Configuration Support			        			*/
@@ -383,7 +383,7 @@ String makeLspFromWildcard(String wc)
       if (detail_pattern != null) {
        }
       
-      LspLog.logD("Search Result " + sym.toString(2));
+      LspLog.logD(() -> "Search Result " + sym.toString(2));
       result_syms.add(sym);
     }
 }
@@ -35,6 +35,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -69,6 +72,9 @@ private LspBaseProtocol use_protocol;
 private LspBasePreferences project_preferences;
 private Map<String,EditParameters> edit_parameters;
 private Set<String> project_references;
+private LspBaseFileCache file_cache;
+private LspBaseWorkingSet working_set;
+private LspBaseSymbolIndex symbol_index;
 
 
 
@@ -92,6 +98,9 @@ LspBaseProject(LspBaseMain lm,LspBaseProjectManager pm,String name,File base)
    project_preferences = new LspBasePreferences(pm.getSystemPreferences());
    edit_parameters = new HashMap<>();
    project_references = new HashSet<>();
+   file_cache = null;
+   working_set = null;
+   symbol_index = null;
 
    File f = new File(base_directory,".bubbles");
    if (!f.exists()) f.mkdir();
@@ -167,6 +176,34 @@ List<LspBaseProject> getReferencingProjects()
 
 LspBasePreferences getPreferences()		{ return project_preferences; }
 
+synchronized LspBaseFileCache getFileCache()
+{
+   if (file_cache == null) {
+      // budget in megabytes; 0 turns eviction off
+      int mb = getLanguageData().getCapabilityInt("lsp.memory.fileBudget",0);
+      file_cache = new LspBaseFileCache(mb * 1024L * 1024L);
+    }
+   return file_cache;
+}
+
+synchronized LspBaseWorkingSet getWorkingSet()
+{
+   if (working_set == null) {
+      // most documents kept open on the server; 0 keeps them all
+      int max = getLanguageData().getCapabilityInt("lsp.memory.openFiles",0);
+      working_set = new LspBaseWorkingSet(max);
+    }
+   return working_set;
+}
+
+synchronized LspBaseSymbolIndex getSymbolIndex()
+{
+   if (symbol_index == null) {
+      symbol_index = new LspBaseSymbolIndex(this);
+    }
+   return symbol_index;
+}
+
 int getDelayTime(String bid)
 {
    EditParameters ep = getParameters(bid);
@@ -251,6 +288,9 @@ void open() throws LspBaseException
 
    use_protocol.initialize();
 
+   // read the saved symbols now so the first NAMES request need not wait
+   lsp_base.startTask(this::getSymbolIndex);
+
    is_open = true;
 }
 
@@ -543,39 +583,62 @@ private void executeLibraryCommand(String typ,String cmd,LspBasePathSpec ps)
 /*										*/
 /********************************************************************************/
 
+/**
+ *	Names for files with known symbols (in memory or in the symbol
+ *	index) are reported at once; only the rest wait for the server.
+ **/
+
 void getAllNames(LspNamer namer)
 {
+   List<LspBaseFile> todo = new ArrayList<>();
+   for (LspBaseFile lbf : project_files) {
+      JSONArray syms = lbf.getKnownSymbols();
+      if (syms == null) todo.add(lbf);
+      else namer.handleNames(this,lbf,syms);
+    }
+   if (todo.isEmpty()) return;
+
    use_protocol.waitForProgressDone(null);
 
-   for (LspBaseFile lbf : project_files) {
-      NameHandler nh = new NameHandler(namer,this,lbf);
-      nh.handleResponse(lbf.getSymbols());
-//    JSONObject tdi = createJson("uri",lbf.getUri());
-//    use_protocol.sendMessage("textDocument/documentSymbol",
-//	    new NameHandler(namer,this,lbf),
-//	    "textDocument",tdi);
+   // keep several requests in flight and report files as they finish
+   int max = getLanguageData().getCapabilityInt("lsp.requests.symbolConcurrency",1);
+   if (max <= 0) max = 1;
+   BlockingQueue<NameResult> done = new LinkedBlockingQueue<>();
+   int next = 0;
+   int pending = 0;
+   while (next < todo.size() || pending > 0) {
+      while (next < todo.size() && pending < max) {
+	 LspBaseFile lbf = todo.get(next++);
+	 ++pending;
+	 lbf.getSymbolsAsync().whenComplete((syms,t) -> done.add(new NameResult(lbf,syms)));
+       }
+      NameResult nr = null;
+      while (nr == null) {
+	 try {
+	    nr = done.take();
+	  }
+	 catch (InterruptedException e) { }
+       }
+      --pending;
+      namer.handleNames(this,nr.getFile(),nr.getSymbols());
     }
 }
 
 
-private class NameHandler implements LspArrayResponder {
+private static class NameResult {
 
-   private LspBaseProject for_project;
    private LspBaseFile for_file;
-   private LspNamer use_namer;
+   private JSONArray file_symbols;
 
-   NameHandler(LspNamer namer,LspBaseProject project,LspBaseFile file) {
-      for_project = project;
+   NameResult(LspBaseFile file,JSONArray syms) {
       for_file = file;
-      use_namer = namer;
+      file_symbols = (syms == null ? new JSONArray() : syms);
     }
 
+   LspBaseFile getFile()			{ return for_file; }
+   JSONArray getSymbols()			{ return file_symbols; }
 
-   @Override public void handleResponse(JSONArray jarr) {
-      use_namer.handleNames(for_project,for_file,jarr);
-    }
-
-}	// end of inner class NameHandler
+}	// end of inner class NameResult
 
 
 
@@ -773,53 +836,64 @@ void findAll(LspBaseFile file,int start,int end,boolean defs,boolean refs,boolea
       boolean type,boolean ronly,boolean wonly,IvyXmlWriter xw)
    throws LspBaseException
 {
-   LineCol lc = file.mapOffsetToLineColumn(start);
+   LineCol lc = file.mapOffsetToLspLineColumn(start);
    LspBaseFindResult rslt = new LspBaseFindResult(this,file,defs,refs,
 	 impls,type,ronly,wonly);
 
-   try {
+   // issue all the requests at once; results are applied in request order
+   // since later kinds (HIGH, DEFS) refine what earlier ones found
+   JSONObject pos = createJson("line",lc.getLine(),"character",lc.getColumn());
+   List<String> kinds = new ArrayList<>();
+   List<CompletableFuture<Object>> futs = new ArrayList<>();
    if (refs) {
-      use_protocol.sendWorkMessage("textDocument/references",
-	    new FindResponder(rslt,"REFS"),
+      kinds.add("REFS");
+      futs.add(use_protocol.sendWorkAsync("textDocument/references",null,
 	    "textDocument",file.getTextDocumentId(),
-	    "position",createJson("line",lc.getLspLine(),"character",lc.getLspColumn()),
-	    "context",createJson("includeDeclaration",defs));
+	    "position",pos,
+	    "context",createJson("includeDeclaration",defs)));
     }
 
    if (ronly || wonly) {
-      use_protocol.sendWorkMessage("textDocument/documentHighlight",
-	    new FindResponder(rslt,"HIGH"),
+      kinds.add("HIGH");
+      futs.add(use_protocol.sendWorkAsync("textDocument/documentHighlight",null,
 	    "textDocument",file.getTextDocumentId(),
-	    "position",createJson("line",lc.getLspLine(),"character",lc.getLspColumn()));
+	    "position",pos));
     }
 
    if (!type) {
       if (getLanguageData().getCapability("declarationProvider") != null) {
-	 use_protocol.sendWorkMessage("textDocument/declaration",
-	       new FindResponder(rslt,"DECL"),
+	 kinds.add("DECL");
+	 futs.add(use_protocol.sendWorkAsync("textDocument/declaration",null,
 	       "textDocument",file.getTextDocumentId(),
-	       "position",createJson("line",lc.getLspLine(),"character",lc.getLspColumn()));
+	       "position",pos));
        }
 
-      use_protocol.sendWorkMessage("textDocument/definition",
-	    new FindResponder(rslt,"DEFS"),
+      kinds.add("DEFS");
+      futs.add(use_protocol.sendWorkAsync("textDocument/definition",null,
 	    "textDocument",file.getTextDocumentId(),
-	    "position",createJson("line",lc.getLspLine(),"character",lc.getLspColumn()));
+	    "position",pos));
     }
    else {
-      use_protocol.sendWorkMessage("textDocument/typeDefinition",
-	    new FindResponder(rslt,"TYPE"),
+      kinds.add("TYPE");
+      futs.add(use_protocol.sendWorkAsync("textDocument/typeDefinition",null,
 	    "textDocument",file.getTextDocumentId(),
-	    "position",createJson("line",lc.getLspLine(),"character",lc.getLspColumn()));
+	    "position",pos));
     }
 
    if (impls) {
       // might need to be done before definitions?
-      use_protocol.sendWorkMessage("textDocument/implementation",
-	    new FindResponder(rslt,"IMPL"),
+      kinds.add("IMPL");
+      futs.add(use_protocol.sendWorkAsync("textDocument/implementation",null,
 	    "textDocument",file.getTextDocumentId(),
-	    "position",createJson("line",lc.getLspLine(),"character",lc.getLspColumn()));
+	    "position",pos));
     }
+
+   try {
+      for (int i = 0; i < futs.size(); ++i) {
+	 Object cnts = use_protocol.waitForReply(futs.get(i));
+	 FindResponder fr = new FindResponder(rslt,kinds.get(i));
+	 fr.handleResponse(cnts);
+       }
     }
    catch (LspBaseException e) {
       if (e.getMessage().contains("Protocol error")) return;
@@ -944,13 +1018,13 @@ private void textProgress(TextSearchData data,boolean done)
 void fullyQualifiedName(LspBaseFile file,int start,int end,IvyXmlWriter xw)
    throws LspBaseException
 {
-   LineCol lc = file.mapOffsetToLineColumn(start);
+   LineCol lc = file.mapOffsetToLspLineColumn(start);
    LspBaseFindResult rslt = new LspBaseFindResult(this,file,true,false,
 	 false,false,false,false);
    use_protocol.sendMessage("textDocument/definition",
 	 new FindResponder(rslt,"DEFS"),
 	 "textDocument",file.getTextDocumentId(),
-	 "position",createJson("line",lc.getLspLine(),"character",lc.getLspColumn()));
+	 "position",createJson("line",lc.getLine(),"character",lc.getColumn()));
 
    LspLog.logD("FULLY QUALIFIED NAME RESULTS " + rslt.getResults().size());
    boolean fnd = false;
@@ -996,16 +1070,9 @@ void findByKey(LspBaseFile lbf,String key,IvyXmlWriter xw)
     }
    LspLog.logD("CHECK KEY " + filpfx + " " + lbf.getPath() + " " + proj + " " + getName());
 
-   JSONArray syms = lbf.getSymbols();
-   for (int i = 0; i < syms.length(); ++i) {
-      JSONObject sym = syms.getJSONObject(i);
-      String pfx = sym.optString("prefix",null);
-      String nm = sym.getString("name");
-      if (pfx != null) nm = pfx + "." + nm;
-      if (nm.equals(key)) {
-	 LspBaseUtil.outputLspSymbol(this,lbf,sym,xw);
-	 break;
-       }
+   JSONObject sym = lbf.findSymbolByKey(key);
+   if (sym != null) {
+      LspBaseUtil.outputLspSymbol(this,lbf,sym,xw);
     }
 }
 
@@ -1202,9 +1269,24 @@ void didSaveFile(LspBaseFile lbf) throws LspBaseException
 
 void didCloseFile(LspBaseFile lbf) throws LspBaseException
 {
+   didCloseFile(lbf,true);
+}
+
+
+/**
+ *      Close the document on the server.  The working set closes files
+ *      that have not changed and so does not report them to bubbles.
+ **/
+
+void didCloseFile(LspBaseFile lbf,boolean report) throws LspBaseException
+{
+   // don't reopen the document just to name it
+   lbf.flushChanges();
    use_protocol.sendMessage("textDocument/didClose",
-	 "textDocument",lbf.getTextDocumentId());
+	 "textDocument",lbf.getLocalDocumentId());
    
+   if (!report) return;
+
    IvyXmlWriter xw = lsp_base.beginMessage("RESOURCE");
    outputDelta(xw,"CHANGED",lbf);
    lsp_base.finishMessage(xw);
@@ -22,22 +22,24 @@
 
 package edu.brown.cs.bubbles.lspbase;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -59,19 +61,24 @@ class LspBaseProtocol implements LspBaseConstants
 /*										*/
 /********************************************************************************/
 
-private Map<Integer,LspResponder> pending_map;
-private Map<Integer,String> error_map;
+private Map<Integer,PendingRequest> pending_map;
 private String client_id;
 private List<File> work_spaces;
 private List<File> source_roots;
 private boolean is_initialized;
 private boolean doing_initialization;
 private LspBaseLanguageData for_language;
-private Writer message_stream;
+private LspBaseMessageWriter message_stream;
 private Map<String,File> pathWorkspaceMap;
 private Map<File,List<LspBasePathSpec>> workspacePathMap;
 private Set<String> active_progress;
-private FileWriter lsp_input;
+private AtomicInteger pending_tokens;
+private LspBaseDispatcher message_dispatcher;
+private Set<String> cancel_methods;
+private Set<String> supersede_methods;
+private LspBaseStatistics lsp_statistics;
+private OutputStream lsp_input;
+private LspBaseWireCapture wire_capture;
 
 
 
@@ -88,13 +95,17 @@ private static AtomicLong progress_counter = new AtomicLong(1);
 LspBaseProtocol(File workspace,List<LspBasePathSpec> paths,LspBaseLanguageData ld)
 {
    pending_map = new ConcurrentHashMap<>();
-   error_map = new ConcurrentHashMap<>();
    pathWorkspaceMap = new HashMap<>();
    workspacePathMap = new HashMap<>();
    active_progress = new HashSet<>();
+   pending_tokens = new AtomicInteger(0);
 
    for_language = ld;
    client_id = ld.getName() + "_" + workspace.getName();
+   message_dispatcher = new LspBaseDispatcher(client_id,LSPBASE_DISPATCH_WORKERS);
+   lsp_statistics = new LspBaseStatistics(client_id);
+   cancel_methods = ld.getCapabilitySet("lsp.requests.cancelOnEdit");
+   supersede_methods = ld.getCapabilitySet("lsp.output.supersede");
 
    String command = ld.getLspExecString();
    Map<String,String> keys = new HashMap<>();
@@ -104,13 +115,26 @@ LspBaseProtocol(File workspace,List<LspBasePathSpec> paths,LspBaseLanguageData l
    lsp_input = null;
    if (s != null) {
       try {
-         lsp_input = new FileWriter(s);
+         lsp_input = new FileOutputStream(s);
        }
       catch (IOException e) {
          lsp_input = null;
        }
     }
 
+   String cap = System.getProperty("edu.brown.cs.bubbles.lspbase.CAPTURE");
+   if (cap == null) cap = ld.getCapabilityString("lsp.captureFile");
+   wire_capture = null;
+   if (cap != null) {
+      cap = IvyFile.expandName(cap,keys);
+      try {
+         wire_capture = new LspBaseWireCapture(new File(cap));
+       }
+      catch (IOException e) {
+         LspLog.logE("Can't create capture file " + cap,e);
+       }
+    }
+
    command = IvyFile.expandName(command,keys);
    LspLog.logD("Run server: " + command);
 
@@ -118,7 +142,10 @@ LspBaseProtocol(File workspace,List<LspBasePathSpec> paths,LspBaseLanguageData l
       IvyExec exec = new IvyExec(command,IvyExec.PROVIDE_INPUT | IvyExec.READ_OUTPUT | IvyExec.READ_ERROR);
       InputStream rdr = exec.getInputStream();
       InputStream err = exec.getErrorStream();
-      message_stream = new OutputStreamWriter(exec.getOutputStream());
+      int qsz = ld.getCapabilityInt("lsp.output.queueSize",LSPBASE_OUTPUT_QUEUE_SIZE);
+      message_stream = new LspBaseMessageWriter(client_id,exec.getOutputStream(),
+            lsp_input,qsz,lsp_statistics);
+      message_stream.setCapture(wire_capture);
       MessageReader mr = new MessageReader(rdr);
       mr.start();
       ErrorReader er = new ErrorReader(err);
@@ -190,6 +217,9 @@ void shutDown()
       localSendMessage("exit",false,null);
     }
    catch (LspBaseException e) { }
+
+   message_stream.close();
+   if (wire_capture != null) wire_capture.close();
 }
 
 
@@ -265,6 +295,7 @@ private void handleInit(JSONObject init)
 {
    JSONObject scaps = init.getJSONObject("capabilities");
    for_language.setCapabilities(null,scaps);
+   LspLog.logD("Position encoding " + for_language.getPositionEncoding());
 }
 
 
@@ -284,8 +315,8 @@ JSONObject createRange(LspBaseFile file,int start,int end)
 
 JSONObject createPosition(LspBaseFile file,int pos)
 {
-   LineCol lc = file.mapOffsetToLineColumn(pos);
-   return createJson("line",lc.getLspLine(),"character",lc.getLspColumn());
+   LineCol lc = file.mapOffsetToLspLineColumn(pos);
+   return createJson("line",lc.getLine(),"character",lc.getColumn());
 }
 
 
@@ -328,6 +359,14 @@ void sendMessage(String method,LspAnyResponder resp,Object ... params)
 }
 
 
+void sendTokenMessage(String method,LspTokenResponder resp,Object ... params)
+   throws LspBaseException
+{
+   JSONObject obj = createJson(params);
+   sendTokenJson(method,resp,obj);
+}
+
+
 String sendWorkMessage(String method,LspJsonResponder resp,Object ... params)
       throws LspBaseException
 {
@@ -361,6 +400,17 @@ String sendWorkMessage(String method,LspAnyResponder resp,Object ... params)
 }
 
 
+String sendTokenWorkMessage(String method,LspTokenResponder resp,Object ... params)
+   throws LspBaseException
+{
+   String tok = "WORK_" + progress_counter.getAndIncrement();
+   JSONObject obj = createJson(params);
+   obj.put("workDoneToken",tok);
+   sendTokenJson(method,resp,obj);
+   return tok;
+}
+
+
 void sendJson(String method,LspJsonResponder resp,JSONObject params)
       throws LspBaseException
 {
@@ -379,6 +429,15 @@ void sendJson(String method,LspAnyResponder resp,JSONObject params)
 }
 
 
+void sendTokenJson(String method,LspTokenResponder resp,JSONObject params)
+   throws LspBaseException
+{
+   if (!is_initialized) initialize();
+
+   localDoSendMessage(method,resp,true,params);
+}
+
+
 void sendJson(String method,JSONObject params)
    throws LspBaseException
 {
@@ -399,6 +458,56 @@ void sendJson(String method,LspArrayResponder resp,JSONObject params)
 
 
 
+/********************************************************************************/
+/*										*/
+/*	Asynchronous message sending						*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *      Send a request without waiting.  The responder, if any, is invoked
+ *      when the reply arrives; the returned future then completes with the
+ *      raw result (null for a null result) or exceptionally with an
+ *      LspBaseException if the server reports an error.
+ **/
+
+CompletableFuture<Object> sendAsync(String method,LspResponder resp,Object ... params)
+{
+   JSONObject obj = createJson(params);
+   return sendJsonAsync(method,resp,obj);
+}
+
+
+CompletableFuture<Object> sendWorkAsync(String method,LspResponder resp,Object ... params)
+{
+   String tok = "WORK_" + progress_counter.getAndIncrement();
+   JSONObject obj = createJson(params);
+   obj.put("workDoneToken",tok);
+   return sendJsonAsync(method,resp,obj);
+}
+
+
+CompletableFuture<Object> sendJsonAsync(String method,LspResponder resp,JSONObject params)
+{
+   try {
+      if (!is_initialized) initialize();
+    }
+   catch (LspBaseException e) {
+      CompletableFuture<Object> fut = new CompletableFuture<>();
+      fut.completeExceptionally(e);
+      return fut;
+    }
+
+   if (resp == null) {
+      LspAnyResponder dummy = this::dummyHandler;
+      resp = dummy;
+    }
+
+   return localSendAsync(method,resp,true,params);
+}
+
+
+
 private void localSendMessage(String method,LspJsonResponder resp,boolean wait,JSONObject params)
       throws LspBaseException
 {
@@ -435,6 +544,15 @@ private void localSendMessage(String method,LspArrayResponder resp,boolean wait,
 
 private void localDoSendMessage(String method,LspResponder resp,boolean wait,JSONObject params)
    throws LspBaseException
+{
+   CompletableFuture<Object> fut = localSendAsync(method,resp,wait,params);
+
+   if (wait && resp != null) waitForReply(fut);
+}
+
+
+private CompletableFuture<Object> localSendAsync(String method,LspResponder resp,boolean wait,
+      JSONObject params)
 {
    int id = id_counter.getAndIncrement();
    JSONObject jo = new JSONObject();
@@ -443,50 +561,51 @@ private void localDoSendMessage(String method,LspResponder resp,boolean wait,JSO
    if (method.contains(".")) jo.put("id",Integer.toString(id));
    jo.put("method",method);
    if (params != null) jo.put("params",params);
-   String cnts = jo.toString();
-   int len = cnts.length();
-   StringBuffer buf = new StringBuffer();
-   buf.append("Content-Length: ");
-   buf.append(len);
-   buf.append("\r\n");
-   buf.append("\r\n");
-   buf.append(cnts);
-
-   LspLog.logD("Send: " + id + " " + method + " " + jo.toString(2));
 
-   synchronized (this) {
-      if (resp != null) {
-         pending_map.put(id,resp);
+   LspLog.logD(() -> "Send: " + id + " " + method + " " + jo.toString(2));
+
+   CompletableFuture<Object> fut = null;
+   if (resp != null) {
+      PendingRequest pr = new PendingRequest(id,jo.get("id"),method,resp,wait,params);
+      pr.setStartTime(lsp_statistics.startRequest(method));
+      pending_map.put(id,pr);
+      if (resp instanceof LspTokenResponder) pending_tokens.incrementAndGet();
+      fut = pr.getFuture();
+      int tmo = getTimeout(method);
+      if (tmo > 0) {
+         Executor ex = CompletableFuture.delayedExecutor(tmo,TimeUnit.MILLISECONDS);
+         ex.execute(() -> cancelRequest(id,"no reply after " + tmo + "ms"));
        }
-      if (!wait) error_map.put(id,"");
     }
-   
-   synchronized (message_stream) {
-      try{
-	 message_stream.write(buf.toString());
-	 message_stream.flush();
-         if (lsp_input != null) lsp_input.write(buf.toString());
-       }
-      catch (IOException e) {
-	 LspLog.logE("Problem writing message",e);
-       }
+   else {
+      lsp_statistics.noteNotification(method);
+      fut = CompletableFuture.completedFuture(null);
     }
 
-   String err = null;
-   if (wait && resp != null) {
-      synchronized(this) {
-	 while (pending_map.containsKey(id)) {
-	    try {
-	       wait(5000);
-	     }
-	    catch (InterruptedException e) { }
-	  }
-	 err = error_map.remove(id);
-	 if (err != null && err.equals("")) err = null;
+   message_stream.queueMessage(jo,getSupersedeKey(method,resp,params));
+
+   return fut;
+}
+
+
+/**
+ *      Wait for an asynchronous request to finish, turning a protocol error
+ *      into an LspBaseException.
+ **/
+
+Object waitForReply(CompletableFuture<?> fut) throws LspBaseException
+{
+   for ( ; ; ) {
+      try {
+         return fut.get();
+       }
+      catch (InterruptedException e) { }
+      catch (ExecutionException e) {
+         Throwable t = e.getCause();
+         if (t instanceof LspBaseException) throw (LspBaseException) t;
+         throw new LspBaseException("Problem with request",t);
        }
     }
-
-   if (err != null) throw new LspBaseException(err);
 }
 
 
@@ -499,37 +618,115 @@ private void localSendResponse(int id,Object result,JSONObject err)
    jo.put("id",id);
    if (err == null) jo.put("result",result);
    else jo.put("error",err);
-   String cnts = jo.toString();
-   int len = cnts.length();
-   StringBuffer buf = new StringBuffer();
-   buf.append("Content-Length: ");
-   buf.append(len);
-   buf.append("\r\n");
-   buf.append("\r\n");
-   buf.append(cnts);
-
-   LspLog.logD("Send Response: " + id  + " " + jo.toString(2));
-
-   synchronized (message_stream) {
-      try{
-	 message_stream.write(buf.toString());
-	 message_stream.flush();
-         if (lsp_input != null) lsp_input.write(buf.toString());
-       }
-      catch (IOException e) {
-	 LspLog.logE("Problem writing response",e);
-       }
+
+   LspLog.logD(() -> "Send Response: " + id  + " " + jo.toString(2));
+
+   message_stream.queueMessage(jo);
+}
+
+
+/**
+ *      Notifications that only report current state (e.g. didSave) replace
+ *      an identical one for the same document that has not been written yet.
+ **/
+
+private String getSupersedeKey(String method,LspResponder resp,JSONObject params)
+{
+   if (resp != null || params == null) return null;
+   if (!supersede_methods.contains(method)) return null;
+
+   JSONObject doc = params.optJSONObject("textDocument");
+   if (doc == null) return null;
+   String uri = doc.optString("uri",null);
+   if (uri == null) return null;
+
+   return method + "@" + uri;
+}
+
+
+/**
+ *      Check if any outstanding request names the given document.
+ **/
+
+boolean hasPendingRequests(String uri)
+{
+   for (PendingRequest pr : pending_map.values()) {
+      if (pr.isFor(uri)) return true;
     }
+   return false;
 }
 
 
+int getOutputQueueDepth()
+{
+   if (message_stream == null) return 0;
+   return message_stream.getQueueDepth();
+}
+
+
+LspBaseStatistics getStatistics()               { return lsp_statistics; }
+
+
 private void dummyHandler(Object resp)	    { }
 
 
 
+/********************************************************************************/
+/*										*/
+/*	Request deadlines and cancellation					*/
+/*										*/
+/********************************************************************************/
+
+private int getTimeout(String method)
+{
+   int dflt = for_language.getCapabilityInt("lsp.requests.defaultTimeout",0);
+   return for_language.getCapabilityInt("lsp.requests.timeouts." + method,dflt);
+}
+
+
+/**
+ *      Cancel outstanding read requests for a document that were issued
+ *      against a version older than the given one.
+ **/
+
+void cancelStaleRequests(String uri,int version)
+{
+   for (PendingRequest pr : pending_map.values()) {
+      if (!cancel_methods.contains(pr.getMethod())) continue;
+      if (pr.isStale(uri,version)) {
+         cancelRequest(pr.getId(),"superseded by version " + version);
+       }
+    }
+}
+
+
+private void cancelRequest(int id,String why)
+{
+   PendingRequest pr = removePending(id);
+   if (pr == null) return;
+
+   LspLog.logD("Cancel request " + pr + ": " + why);
+   if (pr.markDone()) lsp_statistics.cancelRequest(pr.getMethod());
+
+   // if the request never left the queue, the server need not hear about it
+   if (!message_stream.dropQueued(pr.getIdObject())) {
+      JSONObject jo = new JSONObject();
+      jo.put("jsonrpc","2.0");
+      jo.put("method","$/cancelRequest");
+      jo.put("params",createJson("id",pr.getIdObject()));
+      message_stream.queueMessage(jo);
+    }
+
+   pr.getFuture().completeExceptionally(new LspBaseException("Request " + pr + " cancelled: " + why));
+}
+
+
+
 void processReply(int id,Object cnts)
 {
-   LspResponder lsp = pending_map.get(id);
+   PendingRequest pr = pending_map.get(id);
+   LspResponder lsp = (pr == null ? null : pr.getResponder());
+   Throwable fail = null;
 
    try {
       if (lsp != null && lsp instanceof LspJsonResponder) {
@@ -551,28 +748,70 @@ void processReply(int id,Object cnts)
 	 if (cnts == JSONObject.NULL) cnts = null;
 	 alsp.handleResponse(cnts);
        }
+      else if (lsp != null && lsp instanceof LspTokenResponder) {
+	 LspTokenResponder tlsp = (LspTokenResponder) lsp;
+	 tlsp.handleResponse(getTokenData(cnts));
+       }
    }
    catch (Throwable t) {
       LspLog.logE("Problem processing response",t);
+      fail = t;
     }
    finally {
-      synchronized (this) {
-	 pending_map.remove(id);
-	 notifyAll();
-      }
+      removePending(id);
+      if (pr != null) {
+         if (fail != null) {
+            pr.getFuture().completeExceptionally(fail);
+          }
+         else {
+            if (cnts == JSONObject.NULL) cnts = null;
+            pr.getFuture().complete(cnts);
+          }
+       }
    }
 }
 
 
+private int [] getTokenData(Object cnts)
+{
+   if (cnts instanceof int []) return (int []) cnts;
+
+   JSONArray arr = null;
+   if (cnts instanceof JSONObject) arr = ((JSONObject) cnts).optJSONArray("data");
+   if (arr == null) return new int[0];
+
+   int [] rslt = new int[arr.length()];
+   for (int i = 0; i < rslt.length; ++i) {
+      rslt[i] = arr.getInt(i);
+    }
+   return rslt;
+}
+
+
+private PendingRequest removePending(int id)
+{
+   PendingRequest pr = pending_map.remove(id);
+   if (pr != null && pr.getResponder() instanceof LspTokenResponder) {
+      pending_tokens.decrementAndGet();
+    }
+   return pr;
+}
+
+
 void processError(int id,JSONObject err)
 {
+   PendingRequest pr = removePending(id);
+   if (pr == null) {
+      // replies to cancelled requests end up here
+      LspLog.logD(() -> "Error for inactive request " + id + " " + err.toString(2));
+      return;
+    }
+
    LspLog.logE("Process Error " + id + " " + err.toString(2));
 
-   LspResponder lsp = pending_map.get(id);
-   String er = error_map.get(id);
+   LspResponder lsp = pr.getResponder();
    try {
-      if (lsp != null && er != null && er.equals("")) {
-	 error_map.remove(id);
+      if (!pr.isWaiting()) {
 	 if (lsp instanceof LspJsonResponder) {
 	    LspJsonResponder jlsp = (LspJsonResponder) lsp;
 	    jlsp.handleResponse(null);
@@ -581,37 +820,32 @@ void processError(int id,JSONObject err)
 	    LspArrayResponder alsp = (LspArrayResponder) lsp;
 	    alsp.handleResponse(null);
 	  }
+	 else if (lsp instanceof LspTokenResponder) {
+	    LspTokenResponder tlsp = (LspTokenResponder) lsp;
+	    tlsp.handleResponse(new int[0]);
+	  }
+	 pr.getFuture().complete(null);
+	 return;
        }
-      String msg = err.optString("error","Protocol error");
-      error_map.put(id,msg);
     }
    catch (Throwable t) {
       LspLog.logE("Problem processing error response",t);
     }
-   finally {
-      synchronized (this) {
-	 pending_map.remove(id);
-	 notifyAll();
-       }
-    }
+
+   String msg = err.optString("error","Protocol error");
+   pr.getFuture().completeExceptionally(new LspBaseException(msg));
 }
 
 
 void processNotification(Integer id,String method,Object params)
 {
    JSONObject jparams = null;
+   if (params instanceof JSONObject) jparams = (JSONObject) params;
 
-   String s = (params == null ? null : params.toString());
-   if (params instanceof JSONObject) {
-      jparams = (JSONObject) params;
-      s = jparams.toString(2);
-    }
-   LspLog.logD("Notification: " + method + " " + id + " "+ s);
-   synchronized (this) {
-      if (pending_map.remove(id) != null) {
-         notifyAll();
-       }
-    }
+   LspLog.logD(() -> "Notification: " + method + " " + id + " " +
+         (params instanceof JSONObject ? ((JSONObject) params).toString(2) : params));
+   PendingRequest opr = removePending(id);
+   if (opr != null) opr.getFuture().complete(null);
 
    Object result = null;
    switch (method) {
@@ -700,7 +934,7 @@ void handleProgress(int id,JSONObject params)
 {
    String token = params.getString("token");
    JSONObject val = params.getJSONObject("value");
-   LspLog.logD("PROGRESS VALUE " + val.toString(2));
+   LspLog.logD(() -> "PROGRESS VALUE " + val.toString(2));
 
    double pct = 0;
    String kind = val.getString("kind");
@@ -802,82 +1036,88 @@ void handleLogMessage(int id,JSONObject params)
 
 private class MessageReader extends Thread {
 
-   private BufferedInputStream message_input;
-   private byte [] byte_buf;
+   private LspBaseFrameDecoder frame_decoder;
 
    MessageReader(InputStream input) {
       super("LSP_Message_Reader_" + client_id);
-      message_input = new BufferedInputStream(input);
-      byte_buf = null;
+      frame_decoder = new LspBaseFrameDecoder(input);
     }
 
    @Override public void run() {
-      int clen = -1;
       for ( ; ; ) {
 	 try {
-	    String ln = readline();
-	    if (ln == null) {
-               ln = readline();
-               if (ln == null) break;
-             }
-//          LspLog.logD("Header line: " + clen + " " + ln.length() + ln);
-	    if (ln.length() == 0) {
-	       if (clen > 0) {
-		  byte [] buf = new byte[clen];
-		  int rln = 0;
-		  while (rln < clen) {
-		     int mln = message_input.read(buf,rln,clen-rln);
-		     rln += mln;
-		   }
-		  String rslt = new String(buf,0,rln);
-		  JSONObject jobj = new JSONObject(rslt);
-// 		  LspLog.logD("Received: " + clen + " " + rln + "::\n" + jobj.toString(2));
-		  process(jobj);
-		  clen = -1;
-		}
+	    if (!frame_decoder.nextFrame()) break;
+	    int len = frame_decoder.getBodyLength();
+	    if (wire_capture != null) {
+	       wire_capture.record(LspBaseWireCapture.FROM_SERVER,frame_decoder.getBody(),0,len);
 	     }
-	    else {
-	       int idx = ln.indexOf(":");
-	       if (idx >= 0) {
-		  String key = ln.substring(0,idx).trim();
-		  String val = ln.substring(idx+1).trim();
-		  if (key.equalsIgnoreCase("Content-Length")) {
-		     clen = Integer.parseInt(val);
-		   }
+	    if (pending_tokens.get() > 0 && frame_decoder.scanTokenReply()) {
+	       int id = frame_decoder.getReplyId();
+	       PendingRequest pr = pending_map.get(id);
+	       if (pr != null && pr.getResponder() instanceof LspTokenResponder) {
+		  noteReply(pr,len,false);
+		  process(null,new MessageProcessor(id,frame_decoder.getReplyTokens()));
+		  continue;
 		}
 	     }
+	    JSONObject jobj = frame_decoder.parseBody();
+	    noteMessage(jobj,len);
+	    process(getLaneKey(jobj),new MessageProcessor(jobj));
+	  }
+	 catch (IOException e) {
+	    LspLog.logE("Problem reading message",e);
+	    break;
+	  }
+	 catch (Throwable t) {
+	    LspLog.logE("Problem decoding message",t);
 	  }
-	 catch (IOException e) { }
        }
-      LspLog.logE("END OF FILE RECEIVED FROM INPUT READER " + byte_buf);
+      LspLog.logE("END OF FILE RECEIVED FROM INPUT READER");
    }
 
-   String readline() throws IOException {
-      byte_buf = new byte[10000];
-      int ln = 0;
-      int lastb = 0;
-      for ( ; ; ) {
-	 int b = message_input.read();
-	 if (b == '\n' && lastb == '\r') break;
-         if (b == -1) {
-            LspLog.logD("EOF FROM input stream " + ln);
-            for (int j = 0; j < ln; ++j) {
-               char ch = (char) byte_buf[j];
-               LspLog.logD("   CHAR " + j + " " + ch);
-             }
-          }
-	 byte_buf[ln++] = (byte) b;
-	 lastb = b;
+   void process(String key,MessageProcessor mp) {
+      message_dispatcher.dispatch(key,mp);
+    }
+
+   private void noteMessage(JSONObject msg,int len) {
+      String method = msg.optString("method",null);
+      if (method != null) {
+         lsp_statistics.noteIncoming(method);
+         lsp_statistics.noteBytesIn(method,len);
+         return;
        }
-      if (ln > 0 && byte_buf[ln-1] == '\r') --ln;
-      return new String(byte_buf,0,ln);
+      PendingRequest pr = pending_map.get(msg.optInt("id"));
+      if (pr != null) noteReply(pr,len,msg.has("error"));
+      else lsp_statistics.noteBytesIn("*REPLY*",len);
     }
 
-   void process(JSONObject reply) {
-      // might want a single message processor rather than separate threads
-      MessageProcessor mp = new MessageProcessor(reply);
-      LspBaseMain lsp = LspBaseMain.getLspMain();
-      lsp.startTask(mp);
+   private void noteReply(PendingRequest pr,int len,boolean err) {
+      // latency is measured to the arrival of the reply, not its processing
+      lsp_statistics.noteBytesIn(pr.getMethod(),len);
+      if (pr.markDone()) {
+         lsp_statistics.finishRequest(pr.getMethod(),pr.getStartTime(),err);
+       }
+    }
+
+   private String getLaneKey(JSONObject msg) {
+      String method = msg.optString("method",null);
+      if (method == null) {
+         // replies are independent of one another
+         return null;
+       }
+      JSONObject params = msg.optJSONObject("params");
+      if (params != null) {
+         Object tok = params.opt("token");
+         if (tok != null) return "TOKEN:" + tok;
+         String uri = params.optString("uri",null);
+         if (uri != null) return uri;
+         JSONObject doc = params.optJSONObject("textDocument");
+         if (doc != null) {
+            uri = doc.optString("uri",null);
+            if (uri != null) return uri;
+          }
+       }
+      return "SERVER";
     }
 
 
@@ -889,12 +1129,27 @@ private class MessageReader extends Thread {
 private class MessageProcessor implements Runnable {
    
    private JSONObject reply_json;
+   private int reply_id;
+   private int [] reply_tokens;
    
    MessageProcessor(JSONObject reply) {
       reply_json = reply;
+      reply_id = 0;
+      reply_tokens = null;
+    }
+   
+   MessageProcessor(int id,int [] tokens) {
+      reply_json = null;
+      reply_id = id;
+      reply_tokens = tokens;
     }
    
    @Override public void run() {
+      if (reply_tokens != null) {
+         LspLog.logD("Handle token reply: " + reply_id + " " + reply_tokens.length);
+         processReply(reply_id,reply_tokens);
+         return;
+       }
       int id = reply_json.optInt("id");
       String method = reply_json.optString("method",null);
       JSONObject err = reply_json.optJSONObject("error");
@@ -912,16 +1167,84 @@ private class MessageProcessor implements Runnable {
                LspLog.logE("Problem with message " + reply_json.toString(2));
              }
             else {
-               LspLog.logD("Process unused message " + reply_json.toString(2));
+               LspLog.logD(() -> "Process unused message " + reply_json.toString(2));
              }
           }
        }
       else {
-         LspLog.logD("Handle reply: " + id + "\n" + reply_json.toString(2));
+         LspLog.logD(() -> "Handle reply: " + id + "\n" + reply_json.toString(2));
          processReply(id,reply_json.opt("result"));
        }
     }
 }
+/********************************************************************************/
+/*										*/
+/*	Pending request information						*/
+/*										*/
+/********************************************************************************/
+
+private static class PendingRequest {
+
+   private int request_id;
+   private Object id_object;
+   private String request_method;
+   private LspResponder request_responder;
+   private boolean is_waiting;
+   private CompletableFuture<Object> request_future;
+   private String document_uri;
+   private int document_version;
+   private long start_time;
+   private boolean is_done;
+
+   PendingRequest(int id,Object idobj,String method,LspResponder resp,boolean wait,
+         JSONObject params) {
+      request_id = id;
+      id_object = idobj;
+      request_method = method;
+      request_responder = resp;
+      is_waiting = wait;
+      request_future = new CompletableFuture<>();
+      document_uri = null;
+      document_version = 0;
+      JSONObject doc = (params == null ? null : params.optJSONObject("textDocument"));
+      if (doc != null) {
+         document_uri = doc.optString("uri",null);
+         document_version = doc.optInt("version",0);
+       }
+    }
+
+   int getId()					{ return request_id; }
+   Object getIdObject() 			{ return id_object; }
+   String getMethod()				{ return request_method; }
+   LspResponder getResponder()			{ return request_responder; }
+   boolean isWaiting()				{ return is_waiting; }
+   CompletableFuture<Object> getFuture()	{ return request_future; }
+   long getStartTime()				{ return start_time; }
+   void setStartTime(long t)			{ start_time = t; }
+
+   synchronized boolean markDone() {
+      if (is_done) return false;
+      is_done = true;
+      return true;
+    }
+
+   boolean isFor(String uri) {
+      return document_uri != null && document_uri.equals(uri);
+    }
+
+   boolean isStale(String uri,int version) {
+      return document_uri != null && document_uri.equals(uri) &&
+            document_version < version;
+    }
+
+   @Override public String toString() {
+      return request_method + ":" + request_id;
+    }
+
+}	// end of inner class PendingRequest
+
+
+
 private class ErrorReader extends Thread {
 
    private BufferedReader input_reader;
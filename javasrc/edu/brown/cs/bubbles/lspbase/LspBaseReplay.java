@@ -0,0 +1,257 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseReplay.java                                              */
+/*                                                                              */
+/*      Stand-in language server that replays a wire capture                    */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import edu.brown.cs.bubbles.lspbase.LspBaseWireCapture.CaptureRecord;
+
+/**
+ *      Replays a capture made with lsp.captureFile in place of the real
+ *      server.  Each incoming message is matched to the next recorded client
+ *      message with the same method; the recorded reply is then sent back,
+ *      with the new id, after the recorded delay, along with any messages
+ *      the server sent on its own before the following client message.
+ *      Run as: LspBaseReplay [-speed factor] capturefile
+ **/
+
+public class LspBaseReplay implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Main program                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+public static void main(String [] args)
+{
+   LspBaseReplay replay = new LspBaseReplay(args);
+   replay.process();
+
+   System.exit(0);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private List<CaptureRecord> capture_records;
+private Map<String,Queue<Integer>> client_messages;
+private Map<String,Integer> reply_messages;
+private double time_scale;
+private LspBaseMessageWriter output_writer;
+private ScheduledThreadPoolExecutor replay_timer;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private LspBaseReplay(String [] args)
+{
+   client_messages = new HashMap<>();
+   reply_messages = new HashMap<>();
+   time_scale = 1.0;
+   replay_timer = new ScheduledThreadPoolExecutor(1);
+
+   String file = null;
+   for (int i = 0; i < args.length; ++i) {
+      if (args[i].startsWith("-s") && i+1 < args.length) {             // -speed <factor>
+         try {
+            double speed = Double.parseDouble(args[++i]);
+            if (speed > 0) time_scale = 1.0 / speed;
+          }
+         catch (NumberFormatException e) {
+            badArgs();
+          }
+       }
+      else if (file == null) file = args[i];
+      else badArgs();
+    }
+   if (file == null) badArgs();
+
+   try {
+      capture_records = LspBaseWireCapture.loadCapture(new File(file));
+    }
+   catch (IOException e) {
+      System.err.println("LSPBASE REPLAY: Problem reading capture " + e);
+      System.exit(1);
+    }
+
+   indexCapture();
+
+   output_writer = new LspBaseMessageWriter("REPLAY",System.out,null,
+         LSPBASE_OUTPUT_QUEUE_SIZE,null);
+}
+
+
+private void badArgs()
+{
+   System.err.println("LSPBASE REPLAY: LspBaseReplay [-speed factor] capturefile");
+   System.exit(1);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Index the capture                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+private void indexCapture()
+{
+   for (int i = 0; i < capture_records.size(); ++i) {
+      CaptureRecord cr = capture_records.get(i);
+      JSONObject jo = cr.getJson();
+      String method = jo.optString("method",null);
+      if (cr.isFromClient()) {
+         if (method == null) continue;
+         Queue<Integer> q = client_messages.get(method);
+         if (q == null) {
+            q = new ArrayDeque<>();
+            client_messages.put(method,q);
+          }
+         q.add(i);
+       }
+      else if (method == null && jo.has("id")) {
+         reply_messages.putIfAbsent(jo.get("id").toString(),i);
+       }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Processing methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+private void process()
+{
+   LspBaseFrameDecoder decoder = new LspBaseFrameDecoder(System.in);
+
+   try {
+      while (decoder.nextFrame()) {
+         JSONObject jo = decoder.parseBody();
+         String method = jo.optString("method",null);
+         if (method == null) continue;                 // client reply to a server request
+         if (method.equals("exit")) break;
+         handleMessage(method,jo.opt("id"));
+       }
+    }
+   catch (IOException e) {
+      System.err.println("LSPBASE REPLAY: Problem reading input " + e);
+    }
+
+   replay_timer.shutdown();
+   try {
+      replay_timer.awaitTermination(10,TimeUnit.SECONDS);
+    }
+   catch (InterruptedException e) { }
+   output_writer.close();
+}
+
+
+private void handleMessage(String method,Object id)
+{
+   Queue<Integer> q = client_messages.get(method);
+   Integer idx = (q == null ? null : q.poll());
+
+   if (idx == null) {
+      if (id != null && !isNotification(method)) {
+         JSONObject rslt = new JSONObject();
+         rslt.put("jsonrpc","2.0");
+         rslt.put("id",id);
+         rslt.put("result",JSONObject.NULL);
+         output_writer.queueMessage(rslt);
+       }
+      return;
+    }
+
+   CaptureRecord req = capture_records.get(idx);
+   Object rid = req.getJson().opt("id");
+   if (rid != null && id != null) {
+      Integer ridx = reply_messages.get(rid.toString());
+      if (ridx != null) {
+         CaptureRecord rep = capture_records.get(ridx);
+         JSONObject reply = rep.copyJson();
+         reply.put("id",id);
+         schedule(reply,rep.getTime() - req.getTime());
+       }
+    }
+
+   // messages the server sent on its own in response to this one
+   for (int i = idx+1; i < capture_records.size(); ++i) {
+      CaptureRecord cr = capture_records.get(i);
+      if (cr.isFromClient()) break;
+      if (!cr.getJson().has("method")) continue;
+      schedule(cr.copyJson(),cr.getTime() - req.getTime());
+    }
+}
+
+
+private void schedule(JSONObject msg,long micros)
+{
+   long delay = (long) (micros * time_scale);
+   replay_timer.schedule(() -> output_writer.queueMessage(msg),delay,TimeUnit.MICROSECONDS);
+}
+
+
+private static boolean isNotification(String method)
+{
+   if (method.startsWith("$/")) return true;
+   if (method.equals("initialized")) return true;
+   if (method.equals("textDocument/willSave")) return true;
+   int idx = method.lastIndexOf("/");
+   return method.startsWith("did",idx+1);
+}
+
+
+
+}       // end of class LspBaseReplay
+
+
+
+
+/* end of LspBaseReplay.java */
@@ -0,0 +1,319 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseStatistics.java                                          */
+/*                                                                              */
+/*      Per-method counts, sizes and latencies for a server connection          */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LspBaseStatistics implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private String          stats_name;
+private Map<String,MethodStats> method_map;
+private long            start_time;
+
+private static final int SUB_BITS = 3;
+private static final int SUB_COUNT = 1 << SUB_BITS;
+private static final int LINEAR_LIMIT = 2 * SUB_COUNT;
+private static final int NUM_BUCKETS = LINEAR_LIMIT + (64 - SUB_BITS - 1) * SUB_COUNT;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LspBaseStatistics(String name)
+{
+   stats_name = name;
+   method_map = new ConcurrentHashMap<>();
+   start_time = System.currentTimeMillis();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Recording methods                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Note that a request was sent.  Returns the start time to pass to
+ *      finishRequest.
+ **/
+
+long startRequest(String method)
+{
+   getStats(method).noteStart();
+   return System.nanoTime();
+}
+
+
+void finishRequest(String method,long start,boolean error)
+{
+   long delta = (System.nanoTime() - start) / 1000;
+   getStats(method).noteFinish(delta,error);
+}
+
+
+void cancelRequest(String method)
+{
+   getStats(method).noteCancel();
+}
+
+
+void noteNotification(String method)
+{
+   getStats(method).noteNotification();
+}
+
+
+void noteIncoming(String method)
+{
+   getStats(method).noteIncoming();
+}
+
+
+void noteBytesOut(String method,int len)
+{
+   getStats(method).noteBytesOut(len);
+}
+
+
+void noteBytesIn(String method,int len)
+{
+   getStats(method).noteBytesIn(len);
+}
+
+
+/**
+ *      Clear the counters and histograms.  Requests still in flight stay
+ *      counted so that their replies balance the gauge.
+ **/
+
+void reset()
+{
+   for (MethodStats ms : method_map.values()) {
+      ms.reset();
+    }
+   start_time = System.currentTimeMillis();
+}
+
+
+private MethodStats getStats(String method)
+{
+   if (method == null) method = "*UNKNOWN*";
+   return method_map.computeIfAbsent(method,MethodStats::new);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void outputXml(IvyXmlWriter xw,int queue)
+{
+   xw.begin("CONNECTION");
+   xw.field("NAME",stats_name);
+   xw.field("TIME",System.currentTimeMillis() - start_time);
+   if (queue >= 0) xw.field("QUEUE",queue);
+
+   Map<String,MethodStats> sorted = new TreeMap<>(method_map);
+   for (MethodStats ms : sorted.values()) {
+      ms.outputXml(xw);
+    }
+
+   xw.end("CONNECTION");
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Statistics for a single method                                          */
+/*                                                                              */
+/********************************************************************************/
+
+private static class MethodStats {
+
+   private String method_name;
+   private long request_count;
+   private long error_count;
+   private long cancel_count;
+   private long notify_count;
+   private long incoming_count;
+   private int in_flight;
+   private int max_in_flight;
+   private long bytes_out;
+   private long bytes_in;
+   private long [] latency_buckets;
+   private long latency_count;
+   private long latency_total;
+   private long latency_max;
+
+   MethodStats(String name) {
+      method_name = name;
+      latency_buckets = new long[NUM_BUCKETS];
+    }
+
+   synchronized void noteStart() {
+      ++request_count;
+      ++in_flight;
+      if (in_flight > max_in_flight) max_in_flight = in_flight;
+    }
+
+   synchronized void noteFinish(long micros,boolean error) {
+      if (in_flight > 0) --in_flight;
+      if (error) ++error_count;
+      ++latency_buckets[getBucket(micros)];
+      ++latency_count;
+      latency_total += micros;
+      if (micros > latency_max) latency_max = micros;
+    }
+
+   synchronized void noteCancel() {
+      if (in_flight > 0) --in_flight;
+      ++cancel_count;
+    }
+
+   synchronized void reset() {
+      request_count = 0;
+      error_count = 0;
+      cancel_count = 0;
+      notify_count = 0;
+      incoming_count = 0;
+      max_in_flight = in_flight;
+      bytes_out = 0;
+      bytes_in = 0;
+      Arrays.fill(latency_buckets,0);
+      latency_count = 0;
+      latency_total = 0;
+      latency_max = 0;
+    }
+
+   synchronized void noteNotification()         { ++notify_count; }
+   synchronized void noteIncoming()             { ++incoming_count; }
+   synchronized void noteBytesOut(int len)      { bytes_out += len; }
+   synchronized void noteBytesIn(int len)       { bytes_in += len; }
+
+   synchronized void outputXml(IvyXmlWriter xw) {
+      xw.begin("METHOD");
+      xw.field("NAME",method_name);
+      if (request_count > 0 || in_flight > 0) {
+         xw.field("COUNT",request_count);
+         xw.field("INFLIGHT",in_flight);
+         xw.field("MAXINFLIGHT",max_in_flight);
+       }
+      if (error_count > 0) xw.field("ERRORS",error_count);
+      if (cancel_count > 0) xw.field("CANCELLED",cancel_count);
+      if (notify_count > 0) xw.field("NOTIFICATIONS",notify_count);
+      if (incoming_count > 0) xw.field("INCOMING",incoming_count);
+      xw.field("BYTESOUT",bytes_out);
+      xw.field("BYTESIN",bytes_in);
+      if (latency_count > 0) {
+         // times are reported in milliseconds
+         xw.field("MEAN",latency_total / latency_count / 1000.0);
+         xw.field("P50",getPercentile(0.50) / 1000.0);
+         xw.field("P95",getPercentile(0.95) / 1000.0);
+         xw.field("P99",getPercentile(0.99) / 1000.0);
+         xw.field("MAX",latency_max / 1000.0);
+       }
+      xw.end("METHOD");
+    }
+
+   private long getPercentile(double p) {
+      long rank = (long) Math.ceil(p * latency_count);
+      if (rank <= 0) rank = 1;
+      long sum = 0;
+      for (int i = 0; i < NUM_BUCKETS; ++i) {
+         sum += latency_buckets[i];
+         if (sum >= rank) return Math.min(getBucketValue(i),latency_max);
+       }
+      return latency_max;
+    }
+
+}       // end of inner class MethodStats
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Histogram buckets                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Latencies are kept in log-linear buckets: exact below LINEAR_LIMIT,
+ *      then SUB_COUNT buckets per power of two, which bounds the error of a
+ *      reported percentile to about 12%.
+ **/
+
+private static int getBucket(long v)
+{
+   if (v < 0) v = 0;
+   if (v < LINEAR_LIMIT) return (int) v;
+
+   int exp = 63 - Long.numberOfLeadingZeros(v);
+   int sub = (int) ((v >> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+   int idx = LINEAR_LIMIT + (exp - SUB_BITS - 1) * SUB_COUNT + sub;
+   return Math.min(idx,NUM_BUCKETS - 1);
+}
+
+
+private static long getBucketValue(int idx)
+{
+   if (idx < LINEAR_LIMIT) return idx;
+
+   int exp = (idx - LINEAR_LIMIT) / SUB_COUNT + SUB_BITS + 1;
+   int sub = (idx - LINEAR_LIMIT) % SUB_COUNT;
+   long low = (1L << exp) + ((long) sub << (exp - SUB_BITS));
+   long width = 1L << (exp - SUB_BITS);
+
+   return low + width / 2;
+}
+
+
+
+}       // end of class LspBaseStatistics
+
+
+
+
+/* end of LspBaseStatistics.java */
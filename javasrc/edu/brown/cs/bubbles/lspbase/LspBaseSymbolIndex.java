@@ -0,0 +1,305 @@
+/********************************************************************************/
+/*										*/
+/*		LspBaseSymbolIndex.java 					*/
+/*										*/
+/*	Persistent index of document symbols for a project			*/
+/*										*/
+/********************************************************************************/
+/*	Copyright 2011 Brown University -- Steven P. Reiss		      */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.				 *
+ *										 *
+ *			  All Rights Reserved					 *
+ *										 *
+ * This program and the accompanying materials are made available under the	  *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at								 *
+ *	http://www.eclipse.org/legal/epl-v10.html				 *
+ *										 *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ *	Symbols for files whose editor contents match what is on disk are
+ *	saved in the project's .bubbles directory, keyed by path and the
+ *	file's modification time and length.  The index is read when the
+ *	project is opened so that names for unchanged files are available
+ *	without asking the server; any file whose key no longer matches is
+ *	treated as missing.  The file holds a header line and then one JSON
+ *	object per file.
+ **/
+
+class LspBaseSymbolIndex implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*										*/
+/*	Private Storage 							*/
+/*										*/
+/********************************************************************************/
+
+private LspBaseProject	for_project;
+private File		index_file;
+private String		position_encoding;
+private Map<String,IndexEntry> file_entries;
+private boolean 	save_scheduled;
+
+private static final int INDEX_VERSION = 1;
+private static final long SAVE_DELAY = 30000;
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Constructors								*/
+/*										*/
+/********************************************************************************/
+
+LspBaseSymbolIndex(LspBaseProject proj)
+{
+   for_project = proj;
+   File dir = new File(proj.getBasePath(),".bubbles");
+   index_file = new File(dir,SYMBOL_INDEX_FILE);
+   position_encoding = proj.getLanguageData().getPositionEncoding();
+   file_entries = new HashMap<>();
+   save_scheduled = false;
+
+   loadIndex();
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Access methods								*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *	Return the flattened symbols for the file if the index has them for
+ *	its current disk contents, null otherwise.
+ **/
+
+JSONArray getSymbols(LspBaseFile lbf)
+{
+   IndexEntry ent;
+   synchronized (this) {
+      ent = file_entries.get(lbf.getPath());
+    }
+   if (ent == null || !ent.matches(lbf.getFile())) return null;
+
+   // the entry is reparsed each time since flattening changes the objects
+   JSONArray rslt = new JSONArray();
+   JSONArray tree = new JSONArray(ent.getSymbolText());
+   for (int i = 0; i < tree.length(); ++i) {
+      LspBaseFile.addSymbolForFile(rslt,tree.getJSONObject(i),null);
+    }
+   return rslt;
+}
+
+
+/**
+ *	Record the flattened symbols for a file whose contents match the
+ *	disk.
+ **/
+
+void noteSymbols(LspBaseFile lbf,JSONArray syms)
+{
+   File f = lbf.getFile();
+   IndexEntry ent = new IndexEntry(f.lastModified(),f.length(),encodeSymbols(syms));
+
+   synchronized (this) {
+      file_entries.put(lbf.getPath(),ent);
+      if (save_scheduled) return;
+      save_scheduled = true;
+    }
+
+   LspBaseMain.getLspMain().startTaskDelayed(this::saveIndex,SAVE_DELAY);
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Encoding methods							*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *	Turn the flattened symbols back into the tree the server returned.
+ **/
+
+private String encodeSymbols(JSONArray syms)
+{
+   JSONArray tree = new JSONArray();
+   for (int i = 0; i < syms.length(); ++i) {
+      JSONObject sym = syms.getJSONObject(i);
+      if (sym.has("prefix")) continue;
+      tree.put(encodeSymbol(sym));
+    }
+   return tree.toString();
+}
+
+
+private JSONObject encodeSymbol(JSONObject sym)
+{
+   JSONObject rslt = new JSONObject();
+   for (String key : sym.keySet()) {
+      switch (key) {
+	 case "prefix" :
+	 case "nested" :
+	 case "children" :
+	    break;
+	 default :
+	    rslt.put(key,sym.get(key));
+	    break;
+       }
+    }
+
+   JSONArray nest = sym.optJSONArray("nested");
+   if (nest != null) {
+      JSONArray children = new JSONArray();
+      for (int i = 0; i < nest.length(); ++i) {
+	 children.put(encodeSymbol(nest.getJSONObject(i)));
+       }
+      rslt.put("children",children);
+    }
+
+   return rslt;
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Load and save methods							*/
+/*										*/
+/********************************************************************************/
+
+private void loadIndex()
+{
+   if (!index_file.exists()) return;
+
+   int ct = 0;
+   try (BufferedReader br = new BufferedReader(new FileReader(index_file))) {
+      String ln = br.readLine();
+      if (ln == null) return;
+      JSONObject hdr = new JSONObject(ln);
+      if (hdr.optInt("version") != INDEX_VERSION) return;
+      // ranges are in the server's position encoding
+      if (!position_encoding.equals(hdr.optString("encoding"))) return;
+      for ( ; ; ) {
+	 ln = br.readLine();
+	 if (ln == null) break;
+	 JSONObject jo = new JSONObject(ln);
+	 IndexEntry ent = new IndexEntry(jo.getLong("mtime"),jo.getLong("length"),
+	       jo.getJSONArray("symbols").toString());
+	 synchronized (this) {
+	    file_entries.put(jo.getString("path"),ent);
+	  }
+	 ++ct;
+       }
+    }
+   catch (IOException | JSONException e) {
+      LspLog.logE("Problem reading symbol index " + index_file,e);
+      synchronized (this) {
+	 file_entries.clear();
+       }
+      return;
+    }
+
+   LspLog.logD("Loaded symbol index for " + for_project.getName() + ": " + ct);
+}
+
+
+private void saveIndex()
+{
+   Map<String,IndexEntry> ents;
+   synchronized (this) {
+      save_scheduled = false;
+      // drop files that have left the project
+      file_entries.keySet().removeIf((p) -> for_project.findFile(p) == null);
+      ents = new HashMap<>(file_entries);
+    }
+
+   File tmp = new File(index_file.getPath() + ".tmp");
+   try (Writer w = new FileWriter(tmp)) {
+      JSONObject hdr = createJson("version",INDEX_VERSION,"encoding",position_encoding);
+      w.write(hdr.toString());
+      w.write("\n");
+      for (Map.Entry<String,IndexEntry> me : ents.entrySet()) {
+	 IndexEntry ent = me.getValue();
+	 w.write("{\"path\":" + JSONObject.quote(me.getKey()));
+	 w.write(",\"mtime\":" + ent.getModified());
+	 w.write(",\"length\":" + ent.getLength());
+	 w.write(",\"symbols\":" + ent.getSymbolText());
+	 w.write("}\n");
+       }
+    }
+   catch (IOException e) {
+      LspLog.logE("Problem writing symbol index " + index_file,e);
+      tmp.delete();
+      return;
+    }
+
+   if (!tmp.renameTo(index_file)) {
+      index_file.delete();
+      if (!tmp.renameTo(index_file)) tmp.delete();
+    }
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Entry for a single file 						*/
+/*										*/
+/********************************************************************************/
+
+private static class IndexEntry {
+
+   private long file_modified;
+   private long file_length;
+   private String symbol_text;
+
+   IndexEntry(long mod,long len,String syms) {
+      file_modified = mod;
+      file_length = len;
+      symbol_text = syms;
+    }
+
+   long getModified()				{ return file_modified; }
+   long getLength()				{ return file_length; }
+   String getSymbolText()			{ return symbol_text; }
+
+   boolean matches(File f) {
+      return f.lastModified() == file_modified && f.length() == file_length;
+    }
+
+}	// end of inner class IndexEntry
+
+
+
+}	// end of class LspBaseSymbolIndex
+
+
+
+
+/* end of LspBaseSymbolIndex.java */
@@ -0,0 +1,215 @@
+/********************************************************************************/
+/*										*/
+/*		LspBaseSymbolRanges.java					*/
+/*										*/
+/*	Offset index over the ranges of a file's symbols			*/
+/*										*/
+/********************************************************************************/
+/*	Copyright 2011 Brown University -- Steven P. Reiss		      */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.				 *
+ *										 *
+ *			  All Rights Reserved					 *
+ *										 *
+ * This program and the accompanying materials are made available under the	  *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at								 *
+ *	http://www.eclipse.org/legal/epl-v10.html				 *
+ *										 *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ *	Symbol ranges are mapped to offsets once for a given set of symbols
+ *	and document.  They are kept sorted by start (longest first), with
+ *	each range linked to the nearest earlier range that contains it.
+ *	Since symbol ranges nest, the smallest range enclosing a region is on
+ *	the chain starting at the last range that begins at or before it, so
+ *	queries take a binary search and a walk up the nesting.
+ **/
+
+class LspBaseSymbolRanges implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*										*/
+/*	Private Storage 							*/
+/*										*/
+/********************************************************************************/
+
+private JSONArray	for_symbols;
+private LspBaseDocument for_document;
+private int []		symbol_start;
+private int []		symbol_end;
+private int []		sorted_order;
+private int []		sorted_start;
+private int []		sorted_parent;
+private Map<Long,Integer> exact_map;
+
+static final long ANY_KIND = -1L;
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Constructors								*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *	Index the symbols, whose ranges map to the given start and end
+ *	offsets, for the given document.
+ **/
+
+LspBaseSymbolRanges(JSONArray syms,LspBaseDocument doc,int [] starts,int [] ends)
+{
+   for_symbols = syms;
+   for_document = doc;
+   symbol_start = starts;
+   symbol_end = ends;
+
+   int n = starts.length;
+   Integer [] ord = new Integer[n];
+   for (int i = 0; i < n; ++i) ord[i] = i;
+   Arrays.sort(ord,(a,b) -> {
+      if (starts[a] != starts[b]) return Integer.compare(starts[a],starts[b]);
+      if (ends[a] != ends[b]) return Integer.compare(ends[b],ends[a]);
+      return Integer.compare(a,b);
+    });
+
+   sorted_order = new int[n];
+   sorted_start = new int[n];
+   sorted_parent = new int[n];
+   exact_map = new HashMap<>();
+   int [] stack = new int[n];
+   int top = 0;
+   for (int i = 0; i < n; ++i) {
+      int idx = ord[i];
+      sorted_order[i] = idx;
+      sorted_start[i] = starts[idx];
+      while (top > 0 && ends[sorted_order[stack[top-1]]] < ends[idx]) --top;
+      sorted_parent[i] = (top > 0 ? stack[top-1] : -1);
+      stack[top++] = i;
+      exact_map.putIfAbsent(rangeKey(starts[idx],ends[idx]),idx);
+    }
+}
+
+
+/**
+ *	Return a mask accepting the given symbol kinds.
+ **/
+
+static long kindMask(int ... kinds)
+{
+   long mask = 0;
+   for (int k : kinds) mask |= (1L << k);
+   return mask;
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Access methods								*/
+/*										*/
+/********************************************************************************/
+
+boolean isFor(JSONArray syms,LspBaseDocument doc)
+{
+   return syms == for_symbols && doc == for_document;
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Query methods								*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *	Return the first symbol whose range is exactly [start,end).
+ **/
+
+JSONObject findExact(int start,int end)
+{
+   Integer idx = exact_map.get(rangeKey(start,end));
+   if (idx == null) return null;
+
+   return for_symbols.getJSONObject(idx);
+}
+
+
+/**
+ *	Return the smallest symbol of one of the given kinds whose range
+ *	contains [start,end), taking the first symbol among equal ranges.
+ **/
+
+JSONObject findEnclosing(int start,int end,long kinds)
+{
+   int pos = lastStartingBefore(start);
+   while (pos >= 0) {
+      int idx = sorted_order[pos];
+      if (symbol_end[idx] >= end && acceptKind(idx,kinds)) break;
+      pos = sorted_parent[pos];
+    }
+   if (pos < 0) return null;
+
+   // identical ranges are chained in symbol order
+   int best = sorted_order[pos];
+   for (int par = sorted_parent[pos]; par >= 0; par = sorted_parent[par]) {
+      int pidx = sorted_order[par];
+      if (symbol_start[pidx] != symbol_start[best] || symbol_end[pidx] != symbol_end[best]) break;
+      if (acceptKind(pidx,kinds)) best = pidx;
+    }
+
+   return for_symbols.getJSONObject(best);
+}
+
+
+private int lastStartingBefore(int off)
+{
+   int lo = 0;
+   int hi = sorted_start.length;
+   while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (sorted_start[mid] <= off) lo = mid+1;
+      else hi = mid;
+    }
+   return lo-1;
+}
+
+
+private boolean acceptKind(int idx,long kinds)
+{
+   if (kinds == ANY_KIND) return true;
+   int k = for_symbols.getJSONObject(idx).optInt("kind",0);
+   if (k < 0 || k >= 64) return false;
+   return (kinds & (1L << k)) != 0;
+}
+
+
+private static long rangeKey(int start,int end)
+{
+   return (((long) start) << 32) | (end & 0xffffffffL);
+}
+
+
+
+}	// end of class LspBaseSymbolRanges
+
+
+
+
+/* end of LspBaseSymbolRanges.java */
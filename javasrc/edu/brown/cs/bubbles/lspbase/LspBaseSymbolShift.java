@@ -0,0 +1,250 @@
+/********************************************************************************/
+/*										*/
+/*		LspBaseSymbolShift.java 					*/
+/*										*/
+/*	Keep a file's previous symbols usable across edits			*/
+/*										*/
+/********************************************************************************/
+/*	Copyright 2011 Brown University -- Steven P. Reiss		      */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.				 *
+ *										 *
+ *			  All Rights Reserved					 *
+ *										 *
+ * This program and the accompanying materials are made available under the	  *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at								 *
+ *	http://www.eclipse.org/legal/epl-v10.html				 *
+ *										 *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ *	When a file with symbols is edited, the offsets of each symbol's
+ *	range and selection range are computed against the old contents and
+ *	then moved by each edit as it is applied.  On request, copies of the
+ *	symbols with their ranges rebuilt from the moved offsets are made,
+ *	once per version.  An edit that removes the start of a range moves
+ *	it to the edit; one that removes the end moves it past the new text.
+ **/
+
+class LspBaseSymbolShift implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*										*/
+/*	Private Storage 							*/
+/*										*/
+/********************************************************************************/
+
+private JSONArray	base_symbols;
+private int []		symbol_offsets;
+private JSONArray	shifted_symbols;
+
+private static final int SLOTS = 4;
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Constructors								*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *	Record the symbols' offsets; the file must still have the contents
+ *	the symbols describe.
+ **/
+
+LspBaseSymbolShift(LspBaseFile file,JSONArray syms)
+{
+   this(syms,getOffsets(file,syms));
+}
+
+
+/**
+ *	Use offsets already computed: for each symbol its range start and
+ *	end, then its selection range start and end (-1 if it has none).
+ **/
+
+LspBaseSymbolShift(JSONArray syms,int [] offsets)
+{
+   base_symbols = syms;
+   shifted_symbols = syms;
+   symbol_offsets = offsets;
+}
+
+
+private static int [] getOffsets(LspBaseFile file,JSONArray syms)
+{
+   int n = syms.length();
+   int [] offs = new int[n*SLOTS];
+   for (int i = 0; i < n; ++i) {
+      JSONObject sym = syms.getJSONObject(i);
+      JSONObject rng = getRange(sym);
+      JSONObject sel = sym.optJSONObject("selectionRange");
+      int j = i*SLOTS;
+      offs[j] = file.mapRangeToStartOffset(rng);
+      offs[j+1] = file.mapRangeToEndOffset(rng);
+      offs[j+2] = (sel == null ? -1 : file.mapRangeToStartOffset(sel));
+      offs[j+3] = (sel == null ? -1 : file.mapRangeToEndOffset(sel));
+    }
+   return offs;
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Update methods								*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *	Move the offsets for replacing len chars at off with tlen chars.
+ **/
+
+synchronized void noteEdit(int off,int len,int tlen)
+{
+   int eoff = off + len;
+   int delta = tlen - len;
+
+   for (int j = 0; j < symbol_offsets.length; ++j) {
+      int p = symbol_offsets[j];
+      if (p < 0) continue;
+      if ((j & 1) == 0) {
+	 // start: text inserted here goes before the symbol
+	 if (p < off) continue;
+	 if (p >= eoff) symbol_offsets[j] = p + delta;
+	 else symbol_offsets[j] = off;
+       }
+      else {
+	 // end: text inserted here goes after the symbol
+	 if (p <= off) continue;
+	 if (p >= eoff) symbol_offsets[j] = p + delta;
+	 else symbol_offsets[j] = off + tlen;
+       }
+    }
+
+   shifted_symbols = null;
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Access methods								*/
+/*										*/
+/********************************************************************************/
+
+/**
+ *	Return the current offset for slot (as in the offsets passed to the
+ *	constructor) of the given symbol.
+ **/
+
+synchronized int getOffset(int sym,int slot)
+{
+   return symbol_offsets[sym*SLOTS + slot];
+}
+
+
+/**
+ *	Return the symbols with ranges for the current contents.  The caller
+ *	must keep the file from being edited meanwhile.
+ **/
+
+synchronized JSONArray getSymbols(LspBaseFile file)
+{
+   if (shifted_symbols != null) return shifted_symbols;
+
+   LspBaseProtocol proto = file.getProject().getProtocol();
+   int max = file.getLength();
+   int n = base_symbols.length();
+   JSONArray rslt = new JSONArray();
+   Map<JSONObject,JSONObject> copies = new IdentityHashMap<>();
+
+   for (int i = 0; i < n; ++i) {
+      JSONObject sym = base_symbols.getJSONObject(i);
+      JSONObject nsym = new JSONObject();
+      for (String key : sym.keySet()) {
+	 switch (key) {
+	    case "range" :
+	    case "selectionRange" :
+	    case "location" :
+	    case "nested" :
+	       break;
+	    default :
+	       nsym.put(key,sym.get(key));
+	       break;
+	  }
+       }
+      int j = i*SLOTS;
+      JSONObject rng = createRange(proto,file,j,max);
+      JSONObject loc = sym.optJSONObject("location");
+      if (loc != null) {
+	 JSONObject nloc = new JSONObject();
+	 for (String key : loc.keySet()) {
+	    if (!key.equals("range")) nloc.put(key,loc.get(key));
+	  }
+	 nloc.put("range",rng);
+	 nsym.put("location",nloc);
+       }
+      else nsym.put("range",rng);
+      if (symbol_offsets[j+2] >= 0) {
+	 nsym.put("selectionRange",createRange(proto,file,j+2,max));
+       }
+      copies.put(sym,nsym);
+      rslt.put(nsym);
+    }
+
+   for (int i = 0; i < n; ++i) {
+      JSONObject sym = base_symbols.getJSONObject(i);
+      JSONArray nest = sym.optJSONArray("nested");
+      if (nest == null) continue;
+      JSONArray nnest = new JSONArray();
+      for (int k = 0; k < nest.length(); ++k) {
+	 JSONObject csym = copies.get(nest.getJSONObject(k));
+	 if (csym != null) nnest.put(csym);
+       }
+      copies.get(sym).put("nested",nnest);
+    }
+
+   shifted_symbols = rslt;
+   return rslt;
+}
+
+
+private JSONObject createRange(LspBaseProtocol proto,LspBaseFile file,int j,int max)
+{
+   int start = Math.min(Math.max(symbol_offsets[j],0),max);
+   int end = Math.min(Math.max(symbol_offsets[j+1],start),max);
+
+   return proto.createRange(file,start,end);
+}
+
+
+private static JSONObject getRange(JSONObject sym)
+{
+   JSONObject loc = sym.optJSONObject("location");
+   if (loc != null) return loc.getJSONObject("range");
+   return sym.getJSONObject("range");
+}
+
+
+
+}	// end of class LspBaseSymbolShift
+
+
+
+
+/* end of LspBaseSymbolShift.java */
@@ -0,0 +1,630 @@
+/********************************************************************************/
+/*										*/
+/*		LspBaseUnitTest.java						*/
+/*										*/
+/*	Self-checking tests for the LSP Base data structures			*/
+/*										*/
+/********************************************************************************/
+/*	Copyright 2011 Brown University -- Steven P. Reiss		      */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.				 *
+ *										 *
+ *			  All Rights Reserved					 *
+ *										 *
+ * This program and the accompanying materials are made available under the	 *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at								 *
+ *	http://www.eclipse.org/legal/epl-v10.html				 *
+ *										 *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.swing.text.Segment;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ *	Unlike LspBaseTest this needs no server or message bus.  Each test
+ *	makes random edits to a structure and checks it against a plain
+ *	String model.  An optional argument sets the random seed; the exit
+ *	status is nonzero if any check fails.
+ **/
+
+public class LspBaseUnitTest implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*										*/
+/*	Main Program								*/
+/*										*/
+/********************************************************************************/
+
+public static void main(String [] args)
+{
+   LspBaseUnitTest ut = new LspBaseUnitTest(args);
+
+   ut.runTests();
+
+   System.exit(ut.report() ? 0 : 1);
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Private Storage 							*/
+/*										*/
+/********************************************************************************/
+
+private Random		random_gen;
+private long		random_seed;
+private int		check_count;
+private int		error_count;
+
+private static final int MAX_ERRORS = 20;
+private static final String TEXT_PIECES [] = {
+   "a", "xyz", " ", "\n", "\n\n", "\u00e9", "\u4e2d", "\ud83d\ude00", "abc\ndef"
+};
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Constructors								*/
+/*										*/
+/********************************************************************************/
+
+private LspBaseUnitTest(String [] args)
+{
+   random_seed = 1;
+   if (args.length > 0) {
+      try {
+	 random_seed = Long.parseLong(args[0]);
+       }
+      catch (NumberFormatException e) {
+	 System.err.println("LspBaseUnitTest [seed]");
+	 System.exit(1);
+       }
+    }
+   random_gen = new Random(random_seed);
+   check_count = 0;
+   error_count = 0;
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Test driver								*/
+/*										*/
+/********************************************************************************/
+
+private void runTests()
+{
+   testDocument();
+   testLineOffsets();
+   testFrameDecoder();
+   testColumnMap();
+   testSymbolRanges();
+   testSymbolShift();
+}
+
+
+private boolean report()
+{
+   System.err.println("LspBaseUnitTest: seed " + random_seed + ", " + check_count +
+	 " checks, " + error_count + " failed");
+   return error_count == 0;
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Rope document tests							*/
+/*										*/
+/********************************************************************************/
+
+private void testDocument()
+{
+   String init = randomText(20000);
+   StringBuilder model = new StringBuilder(init).append('\n');
+   LspBaseDocument doc = LspBaseDocument.create(init);
+   checkDocument("create",doc,model.toString());
+
+   LspBaseDocument.Builder bldr = new LspBaseDocument.Builder();
+   char [] chars = init.toCharArray();
+   for (int off = 0; off < chars.length; ) {
+      int ct = Math.min(chars.length-off,1 + random_gen.nextInt(5000));
+      bldr.append(chars,off,ct);
+      off += ct;
+    }
+   checkDocument("builder",bldr.build(),model.toString());
+
+   // every version must stay intact after later edits
+   List<LspBaseDocument> versions = new ArrayList<>();
+   List<String> texts = new ArrayList<>();
+
+   for (int i = 0; i < 20000; ++i) {
+      if (random_gen.nextInt(3) > 0) {
+	 int off = random_gen.nextInt(model.length()+1);
+	 String txt = randomText(random_gen.nextInt(100) == 0 ? 5000 : 6);
+	 doc = doc.insert(off,txt);
+	 model.insert(off,txt);
+       }
+      else {
+	 int off = random_gen.nextInt(model.length());
+	 int len = random_gen.nextInt(Math.min(model.length()-off,
+	       random_gen.nextInt(100) == 0 ? 5000 : 10) + 1);
+	 doc = doc.remove(off,len);
+	 model.delete(off,off+len);
+       }
+      check(doc.length() == model.length(),"document length after edit " + i);
+      if (i % 1000 == 0) {
+	 checkDocument("edit " + i,doc,model.toString());
+	 versions.add(doc);
+	 texts.add(model.toString());
+       }
+    }
+   checkDocument("final",doc,model.toString());
+
+   for (int i = 0; i < versions.size(); ++i) {
+      check(versions.get(i).toString().equals(texts.get(i)),"document version " + i + " changed");
+    }
+
+   LspBaseDocument vdoc = doc.setVersion(17);
+   check(vdoc.getVersion() == 17 && vdoc.toString().equals(model.toString()),"document setVersion");
+
+   try {
+      doc.remove(model.length()-1,2);
+      check(false,"document remove past end");
+    }
+   catch (IndexOutOfBoundsException e) { }
+}
+
+
+private void checkDocument(String what,LspBaseDocument doc,String model)
+{
+   check(doc.toString().equals(model),"document text at " + what);
+   if (model.length() == 0) return;
+
+   for (int i = 0; i < 50; ++i) {
+      int off = random_gen.nextInt(model.length());
+      int len = random_gen.nextInt(Math.min(model.length()-off,300) + 1);
+      check(doc.charAt(off) == model.charAt(off),"document charAt " + off + " at " + what);
+      check(doc.getText(off,len).equals(model.substring(off,off+len)),
+	    "document getText " + off + ":" + len + " at " + what);
+      Segment seg = doc.getSegment(off,len,null);
+      check(seg.toString().equals(model.substring(off,off+len)),
+	    "document getSegment " + off + ":" + len + " at " + what);
+      char [] buf = new char[len];
+      doc.getChars(off,len,buf);
+      check(new String(buf).equals(model.substring(off,off+len)),
+	    "document getChars " + off + ":" + len + " at " + what);
+    }
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Line offset tests							*/
+/*										*/
+/********************************************************************************/
+
+private void testLineOffsets()
+{
+   StringBuilder model = new StringBuilder(randomText(5000)).append('\n');
+   LspBaseLineOffsets lines = new LspBaseLineOffsets("\n",new StringReader(model.toString()));
+   checkLineOffsets("create",lines,model.toString());
+
+   for (int i = 0; i < 5000; ++i) {
+      // edits keep the final newline, as the file's edits do
+      int off = random_gen.nextInt(model.length());
+      int len = random_gen.nextInt(Math.min(model.length()-1-off,20) + 1);
+      String txt = null;
+      if (random_gen.nextInt(4) > 0) txt = randomText(random_gen.nextInt(8));
+      if (random_gen.nextInt(200) == 0) txt = randomText(3000);
+
+      if (random_gen.nextInt(10) == 0) {
+	 // an update to a copy must not show in the original
+	 String before = model.toString();
+	 LspBaseLineOffsets copy = lines.copy();
+	 copy.update(off,off+len,txt);
+	 checkLineOffsets("original of copy " + i,lines,before);
+	 lines = copy;
+       }
+      else {
+	 lines.update(off,off+len,txt);
+       }
+      model.replace(off,off+len,(txt == null ? "" : txt));
+      if (i % 100 == 0) checkLineOffsets("edit " + i,lines,model.toString());
+    }
+   checkLineOffsets("final",lines,model.toString());
+}
+
+
+private void checkLineOffsets(String what,LspBaseLineOffsets lines,String model)
+{
+   int line = 1;
+   int start = 0;
+   for (int off = 0; off < model.length(); ++off) {
+      if (lines.findLine(off) != line) {
+	 check(false,"findLine " + off + " at " + what);
+	 return;
+       }
+      if (model.charAt(off) == '\n') {
+	 check(lines.findOffset(line) == start,"findOffset " + line + " at " + what);
+	 ++line;
+	 start = off+1;
+       }
+    }
+   check(lines.findOffset(line) == start,"findOffset " + line + " at " + what);
+   check(lines.findOffset(line+5) == model.length(),"findOffset past end at " + what);
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Frame decoder tests							*/
+/*										*/
+/********************************************************************************/
+
+private void testFrameDecoder()
+{
+   ByteArrayOutputStream frames = new ByteArrayOutputStream();
+   List<String> bodies = new ArrayList<>();
+   List<int []> tokens = new ArrayList<>();
+
+   for (int i = 0; i < 300; ++i) {
+      JSONObject jo = new JSONObject();
+      jo.put("jsonrpc","2.0");
+      jo.put("id",i);
+      int [] data = null;
+      if (i % 3 == 0) {
+	 // semantic token replies are scanned without a DOM
+	 data = new int[5 * random_gen.nextInt(i % 30 == 0 ? 20000 : 50)];
+	 for (int j = 0; j < data.length; ++j) data[j] = random_gen.nextInt(100000);
+	 JSONObject rslt = new JSONObject();
+	 rslt.put("resultId","r\"" + i);
+	 rslt.put("data",new JSONArray(data));
+	 jo.put("result",rslt);
+       }
+      else {
+	 jo.put("result",randomText(random_gen.nextInt(i % 50 == 1 ? 100000 : 200)));
+       }
+      String body = jo.toString();
+      byte [] bytes = body.getBytes(StandardCharsets.UTF_8);
+      StringBuilder hdr = new StringBuilder();
+      if (random_gen.nextBoolean()) hdr.append("Content-Type: application/vscode-jsonrpc\r\n");
+      hdr.append(random_gen.nextBoolean() ? "Content-Length: " : "content-length:");
+      hdr.append(bytes.length).append("\r\n\r\n");
+      frames.write(hdr.toString().getBytes(StandardCharsets.US_ASCII),0,hdr.length());
+      frames.write(bytes,0,bytes.length);
+      bodies.add(body);
+      tokens.add(data);
+    }
+
+   // deliver the bytes in small random pieces that split headers and characters
+   InputStream ins = new SplitInputStream(frames.toByteArray(),random_gen.nextLong());
+   LspBaseFrameDecoder dec = new LspBaseFrameDecoder(ins);
+   try {
+      for (int i = 0; i < bodies.size(); ++i) {
+	 check(dec.nextFrame(),"frame " + i + " missing");
+	 check(dec.getBodyString().equals(bodies.get(i)),"frame " + i + " body");
+	 int [] data = tokens.get(i);
+	 if (data != null) {
+	    check(dec.scanTokenReply(),"frame " + i + " not a token reply");
+	    check(dec.getReplyId() == i,"frame " + i + " reply id");
+	    check(Arrays.equals(dec.getReplyTokens(),data),"frame " + i + " tokens");
+	  }
+	 else {
+	    check(!dec.scanTokenReply(),"frame " + i + " taken as a token reply");
+	    JSONObject jo = dec.parseBody();
+	    check(jo.getInt("id") == i,"frame " + i + " parsed id");
+	    check(jo.getString("result").equals(new JSONObject(bodies.get(i)).getString("result")),
+		  "frame " + i + " parsed text");
+	  }
+       }
+      check(!dec.nextFrame(),"frame decoder end of input");
+    }
+   catch (IOException e) {
+      check(false,"frame decoder " + e);
+    }
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Column map tests							*/
+/*										*/
+/********************************************************************************/
+
+private void testColumnMap()
+{
+   StringBuilder buf = new StringBuilder();
+   List<Integer> starts = new ArrayList<>();
+   for (int i = 0; i < 200; ++i) {
+      starts.add(buf.length());
+      String line = randomText(random_gen.nextInt(80)).replace("\n","");
+      if (i % 5 == 0) line = line.replaceAll("[^ -~]","z");
+      buf.append(line).append('\n');
+    }
+   starts.add(buf.length());
+   String text = buf.toString();
+   LspBaseDocument doc = LspBaseDocument.create(text.substring(0,text.length()-1));
+
+   check(LspBaseColumnMap.create(doc,LspBaseColumnMap.ENCODING_UTF16) == null,"utf-16 column map");
+
+   String [] encs = { LspBaseColumnMap.ENCODING_UTF8, LspBaseColumnMap.ENCODING_UTF32 };
+   for (String enc : encs) {
+      LspBaseColumnMap cmap = LspBaseColumnMap.create(doc,enc);
+      check(cmap != null && cmap.isFor(doc),enc + " column map");
+      if (cmap == null) continue;
+      for (int ln = 0; ln < starts.size()-1; ++ln) {
+	 int lstart = starts.get(ln);
+	 int lend = starts.get(ln+1) - 1;
+	 String line = text.substring(lstart,lend);
+	 for (int col = 0; col <= line.length() + 2; ++col) {
+	    int exp = getUnits(line,col,enc);
+	    int lsp = cmap.toLspColumn(ln,lstart,lend,col);
+	    check(lsp == exp,enc + " column " + col + " of line " + ln);
+	    // inside a surrogate pair the column maps to the whole character
+	    if (col > 0 && col < line.length() && Character.isLowSurrogate(line.charAt(col))) continue;
+	    check(cmap.toCharColumn(ln,lstart,lend,lsp) == col,
+		  enc + " round trip " + col + " of line " + ln);
+	  }
+       }
+    }
+}
+
+
+private int getUnits(String line,int col,String enc)
+{
+   int extra = Math.max(0,col - line.length());
+   String pfx = line.substring(0,Math.min(col,line.length()));
+   // a column between the halves of a pair counts the whole character
+   if (pfx.length() > 0 && Character.isHighSurrogate(pfx.charAt(pfx.length()-1)) &&
+	 pfx.length() < line.length()) {
+      pfx = line.substring(0,pfx.length()+1);
+    }
+   if (enc.equals(LspBaseColumnMap.ENCODING_UTF32)) {
+      return pfx.codePointCount(0,pfx.length()) + extra;
+    }
+   return pfx.getBytes(StandardCharsets.UTF_8).length + extra;
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Symbol range tests							*/
+/*										*/
+/********************************************************************************/
+
+private void testSymbolRanges()
+{
+   long mask = LspBaseSymbolRanges.kindMask(1,2,5,6,9,10,11,12);
+
+   for (int t = 0; t < 200; ++t) {
+      List<int []> rngs = new ArrayList<>();
+      addNestedRanges(rngs,0,200 + random_gen.nextInt(300),0);
+      int n = rngs.size();
+      int [] starts = new int[n];
+      int [] ends = new int[n];
+      JSONArray syms = new JSONArray();
+      for (int i = 0; i < n; ++i) {
+	 starts[i] = rngs.get(i)[0];
+	 ends[i] = rngs.get(i)[1];
+	 JSONObject sym = new JSONObject();
+	 sym.put("name","s" + i);
+	 sym.put("kind",1 + random_gen.nextInt(12));
+	 syms.put(sym);
+       }
+      LspBaseSymbolRanges sr = new LspBaseSymbolRanges(syms,null,starts,ends);
+      check(sr.isFor(syms,null),"symbol ranges isFor");
+
+      for (int q = 0; q < 200; ++q) {
+	 int a = random_gen.nextInt(520);
+	 int b = a + random_gen.nextInt(20);
+	 long kinds = (random_gen.nextBoolean() ? mask : LspBaseSymbolRanges.ANY_KIND);
+	 // the smallest accepted range holding [a,b); the first of equal ones
+	 int best = -1;
+	 for (int i = 0; i < n; ++i) {
+	    int k = syms.getJSONObject(i).getInt("kind");
+	    if (kinds != LspBaseSymbolRanges.ANY_KIND && (kinds & (1L << k)) == 0) continue;
+	    if (a < starts[i] || b > ends[i]) continue;
+	    if (best < 0 || ends[i] - starts[i] < ends[best] - starts[best]) best = i;
+	  }
+	 JSONObject exp = (best < 0 ? null : syms.getJSONObject(best));
+	 check(sr.findEnclosing(a,b,kinds) == exp,"findEnclosing " + a + ":" + b + " in set " + t);
+
+	 int pick = random_gen.nextInt(n);
+	 int first = 0;
+	 while (starts[first] != starts[pick] || ends[first] != ends[pick]) ++first;
+	 check(sr.findExact(starts[pick],ends[pick]) == syms.getJSONObject(first),
+	       "findExact " + starts[pick] + ":" + ends[pick] + " in set " + t);
+	 check(sr.findExact(a,a-1) == null,"findExact of empty range");
+       }
+    }
+}
+
+
+/**
+ *	Add properly nested ranges within [s,e), as document symbols are,
+ *	including children that share an end with their parent and repeats
+ *	of the same range.
+ **/
+
+private void addNestedRanges(List<int []> rngs,int s,int e,int depth)
+{
+   rngs.add(new int [] { s, e });
+   if (depth > 4 || e - s < 4) return;
+   if (random_gen.nextInt(10) == 0) {
+      addNestedRanges(rngs,s,e,depth+1);
+      return;
+    }
+
+   int p = s;
+   while (p < e) {
+      int a = p + random_gen.nextInt((e-p)/3 + 1);
+      int b = Math.min(e,a + random_gen.nextInt((e-a)/2 + 1));
+      if (a < b) addNestedRanges(rngs,a,b,depth+1);
+      p = b + 1 + random_gen.nextInt(3);
+    }
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Symbol shift tests							*/
+/*										*/
+/********************************************************************************/
+
+private void testSymbolShift()
+{
+   // offset, removed length, inserted length, then the expected start and end
+   // of a symbol at [10,20)
+   int [][] cases = {
+      { 10, 0, 3, 13, 23 },		// text inserted at the start goes before it
+      { 20, 0, 3, 10, 20 },		// text inserted at the end goes after it
+      { 15, 0, 3, 10, 23 },
+      { 0, 5, 0, 5, 15 },
+      { 5, 10, 0, 5, 10 },		// removing the start moves it to the edit
+      { 15, 10, 0, 10, 15 },
+      { 15, 10, 2, 10, 17 },		// removing the end moves it past the new text
+      { 8, 14, 4, 8, 12 },
+      { 25, 5, 0, 10, 20 },
+    };
+   for (int [] c : cases) {
+      LspBaseSymbolShift shift = new LspBaseSymbolShift(new JSONArray(),new int [] { 10, 20, -1, -1 });
+      shift.noteEdit(c[0],c[1],c[2]);
+      check(shift.getOffset(0,0) == c[3] && shift.getOffset(0,1) == c[4],
+	    "symbol shift for edit " + c[0] + ":" + c[1] + ":" + c[2]);
+      check(shift.getOffset(0,2) == -1 && shift.getOffset(0,3) == -1,
+	    "symbol shift without selection range");
+    }
+
+   StringBuilder model = new StringBuilder(randomText(3000));
+   int n = 100;
+   int [] offs = new int[4*n];
+   String [] texts = new String[2*n];
+   boolean [] touched = new boolean[n];
+   for (int i = 0; i < n; ++i) {
+      int s = random_gen.nextInt(model.length());
+      int e = s + random_gen.nextInt(Math.min(model.length()-s,200) + 1);
+      int ss = s + random_gen.nextInt(e-s+1);
+      int se = ss + random_gen.nextInt(e-ss+1);
+      offs[4*i] = s;
+      offs[4*i+1] = e;
+      offs[4*i+2] = ss;
+      offs[4*i+3] = se;
+      texts[2*i] = model.substring(s,e);
+      texts[2*i+1] = model.substring(ss,se);
+    }
+   LspBaseSymbolShift shift = new LspBaseSymbolShift(new JSONArray(),offs.clone());
+
+   for (int k = 0; k < 300; ++k) {
+      int off = random_gen.nextInt(model.length()+1);
+      int len = random_gen.nextInt(Math.min(model.length()-off,5) + 1);
+      String txt = randomText(random_gen.nextInt(4));
+      for (int i = 0; i < n; ++i) {
+	 // an edit touching a range, even at its ends, may change its text
+	 if (off <= shift.getOffset(i,1) && off + len >= shift.getOffset(i,0)) touched[i] = true;
+       }
+      shift.noteEdit(off,len,txt.length());
+      model.replace(off,off+len,txt);
+
+      for (int i = 0; i < n; ++i) {
+	 for (int j = 0; j < 2; ++j) {
+	    int s = shift.getOffset(i,2*j);
+	    int e = shift.getOffset(i,2*j+1);
+	    boolean ok = (s >= 0 && e >= 0 && s <= model.length() && e <= model.length());
+	    check(ok,"symbol " + i + " shifted out of the text after edit " + k);
+	    if (ok && !touched[i]) {
+	       check(s <= e && model.substring(s,e).equals(texts[2*i+j]),
+		     "symbol " + i + " text changed by edit " + k);
+	     }
+	  }
+       }
+    }
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Utility methods 							*/
+/*										*/
+/********************************************************************************/
+
+private String randomText(int len)
+{
+   StringBuilder buf = new StringBuilder();
+   while (buf.length() < len) {
+      buf.append(TEXT_PIECES[random_gen.nextInt(TEXT_PIECES.length)]);
+    }
+   return buf.toString();
+}
+
+
+private void check(boolean fg,String what)
+{
+   ++check_count;
+   if (fg) return;
+
+   ++error_count;
+   if (error_count <= MAX_ERRORS) System.err.println("LspBaseUnitTest: FAILED " + what);
+}
+
+
+
+/********************************************************************************/
+/*										*/
+/*	Input stream that returns short reads					*/
+/*										*/
+/********************************************************************************/
+
+private static class SplitInputStream extends ByteArrayInputStream {
+
+   private Random split_random;
+
+   SplitInputStream(byte [] buf,long seed) {
+      super(buf);
+      split_random = new Random(seed);
+    }
+
+   @Override public synchronized int read(byte [] b,int off,int len) {
+      int max = (split_random.nextInt(20) == 0 ? 100000 : 7);
+      return super.read(b,off,Math.min(len,1 + split_random.nextInt(max)));
+    }
+
+}	// end of inner class SplitInputStream
+
+
+
+}	// end of class LspBaseUnitTest
+
+
+
+
+/* end of LspBaseUnitTest.java */
@@ -142,10 +142,10 @@ private static void outputRange(boolean extended,LspBaseFile file,JSONObject ran
    JSONObject end = range.getJSONObject("end");
    int ln0 = start.getInt("line") + 1;
    int ch0 = start.getInt("character") + 1;
-   int pos0 = file.mapLineCharToOffset(ln0,ch0);
+   int pos0 = file.mapLspLineCharToOffset(ln0-1,ch0-1);
    int ln1 = end.getInt("line") + 1;
    int ch1 = end.getInt("character") + 1;
-   int pos1 = file.mapLineCharToOffset(ln1,ch1);
+   int pos1 = file.mapLspLineCharToOffset(ln1-1,ch1-1);
 
    if (!extended) {
       xw.field("LINE",ln0);
@@ -218,10 +218,10 @@ private static void outputProblemRange(LspBaseFile file,JSONObject range,IvyXmlW
    JSONObject end = range.getJSONObject("end");
    int ln0 = start.getInt("line") + 1;
    int ch0 = start.getInt("character") + 1;
-   int pos0 = file.mapLineCharToOffset(ln0,ch0);
+   int pos0 = file.mapLspLineCharToOffset(ln0-1,ch0-1);
    int ln1 = end.getInt("line") + 1;
    int ch1 = end.getInt("character") + 1;
-   int pos1 = file.mapLineCharToOffset(ln1,ch1);
+   int pos1 = file.mapLspLineCharToOffset(ln1-1,ch1-1);
    xw.field("LINE",ln0);
    xw.field("COL", ch0);
    xw.field("START",pos0);
@@ -0,0 +1,242 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseWireCapture.java                                         */
+/*                                                                              */
+/*      Timestamped capture of the messages exchanged with a server             */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ *      The capture file starts with CAPTURE_MAGIC and is followed by one
+ *      record per message: a direction byte, the time since the previous
+ *      record in microseconds and the body length (both as unsigned
+ *      varints), then the UTF-8 JSON body.
+ **/
+
+class LspBaseWireCapture implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private OutputStream    output_stream;
+private long            last_time;
+private long            last_flush;
+private byte []         varint_buf;
+
+static final int FROM_CLIENT = 'C';
+static final int FROM_SERVER = 'S';
+
+private static final byte [] CAPTURE_MAGIC = { 'L','S','P','C','A','P','1','\n' };
+private static final long FLUSH_INTERVAL = 1000;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LspBaseWireCapture(File f) throws IOException
+{
+   output_stream = new BufferedOutputStream(new FileOutputStream(f),65536);
+   output_stream.write(CAPTURE_MAGIC);
+   last_time = System.nanoTime();
+   last_flush = System.currentTimeMillis();
+   varint_buf = new byte[10];
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Recording methods                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized void record(int dir,byte [] buf,int off,int len)
+{
+   if (output_stream == null) return;
+
+   long now = System.nanoTime();
+   long delta = Math.max(0,(now - last_time) / 1000);
+   last_time += delta * 1000;
+
+   try {
+      output_stream.write(dir);
+      writeVarint(delta);
+      writeVarint(len);
+      output_stream.write(buf,off,len);
+      long wall = System.currentTimeMillis();
+      if (wall - last_flush >= FLUSH_INTERVAL) {
+         output_stream.flush();
+         last_flush = wall;
+       }
+    }
+   catch (IOException e) {
+      LspLog.logE("Problem writing capture file",e);
+      output_stream = null;
+    }
+}
+
+
+synchronized void close()
+{
+   if (output_stream == null) return;
+
+   try {
+      output_stream.close();
+    }
+   catch (IOException e) { }
+   output_stream = null;
+}
+
+
+private void writeVarint(long v) throws IOException
+{
+   int n = 0;
+   while ((v & ~0x7fL) != 0) {
+      varint_buf[n++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+   varint_buf[n++] = (byte) v;
+   output_stream.write(varint_buf,0,n);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Reading methods                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+static List<CaptureRecord> loadCapture(File f) throws IOException
+{
+   List<CaptureRecord> rslt = new ArrayList<>();
+
+   try (InputStream ins = new BufferedInputStream(new FileInputStream(f),65536)) {
+      for (int i = 0; i < CAPTURE_MAGIC.length; ++i) {
+         if (ins.read() != CAPTURE_MAGIC[i]) {
+            throw new IOException("Not a capture file: " + f);
+          }
+       }
+      long time = 0;
+      for ( ; ; ) {
+         int dir = ins.read();
+         if (dir < 0) break;
+         time += readVarint(ins);
+         int len = (int) readVarint(ins);
+         byte [] body = new byte[len];
+         int off = 0;
+         while (off < len) {
+            int ct = ins.read(body,off,len-off);
+            if (ct < 0) throw new EOFException("Truncated capture file: " + f);
+            off += ct;
+          }
+         rslt.add(new CaptureRecord(dir,time,body));
+       }
+    }
+   catch (EOFException e) {
+      // a capture cut off by a crash is still usable up to that point
+      LspLog.logE("Capture file incomplete: " + e.getMessage());
+    }
+
+   return rslt;
+}
+
+
+private static long readVarint(InputStream ins) throws IOException
+{
+   long v = 0;
+   for (int shift = 0; ; shift += 7) {
+      int b = ins.read();
+      if (b < 0) throw new EOFException("Truncated capture record");
+      v |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) break;
+    }
+   return v;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Captured message                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+static class CaptureRecord {
+
+   private int record_direction;
+   private long record_time;
+   private byte [] record_body;
+   private JSONObject record_json;
+
+   CaptureRecord(int dir,long time,byte [] body) {
+      record_direction = dir;
+      record_time = time;
+      record_body = body;
+      record_json = null;
+    }
+
+   boolean isFromClient()                       { return record_direction == FROM_CLIENT; }
+   long getTime()                               { return record_time; }
+
+   synchronized JSONObject getJson() {
+      if (record_json == null) {
+         record_json = new JSONObject(new String(record_body,StandardCharsets.UTF_8));
+       }
+      return record_json;
+    }
+
+   JSONObject copyJson() {
+      return new JSONObject(new String(record_body,StandardCharsets.UTF_8));
+    }
+
+}       // end of inner class CaptureRecord
+
+
+
+}       // end of class LspBaseWireCapture
+
+
+
+
+/* end of LspBaseWireCapture.java */
@@ -0,0 +1,137 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LspBaseWorkingSet.java                                          */
+/*                                                                              */
+/*      Bound the number of documents a project keeps open on its server        */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.bubbles.lspbase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *      Files note each use of their server-side document.  When more than
+ *      the limit are open, the least recently used ones that are not
+ *      pinned (unsaved edits, open in an editor, locked) and not busy
+ *      (unsent changes, unanswered requests) are closed on the server in
+ *      the background.  A closed file reopens itself, with a new
+ *      version, the next time a request names it.
+ **/
+
+class LspBaseWorkingSet implements LspBaseConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private Map<LspBaseFile,Boolean> open_files;
+private int             max_open;
+private boolean         close_scheduled;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LspBaseWorkingSet(int max)
+{
+   open_files = new LinkedHashMap<>(64,0.75f,true);
+   max_open = max;
+   close_scheduled = false;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+boolean isBounded()                             { return max_open > 0; }
+
+synchronized int getOpenCount()                 { return open_files.size(); }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Tracking methods                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+void noteUse(LspBaseFile lbf)
+{
+   if (max_open <= 0) return;
+
+   synchronized (this) {
+      open_files.put(lbf,Boolean.TRUE);
+      if (open_files.size() <= max_open || close_scheduled) return;
+      close_scheduled = true;
+    }
+
+   LspBaseMain.getLspMain().startTask(this::closeFiles);
+}
+
+
+synchronized void noteClosed(LspBaseFile lbf)
+{
+   open_files.remove(lbf);
+}
+
+
+private void closeFiles()
+{
+   List<LspBaseFile> lru;
+   int over;
+
+   synchronized (this) {
+      close_scheduled = false;
+      over = open_files.size() - max_open;
+      if (over <= 0) return;
+      lru = new ArrayList<>(open_files.keySet());
+    }
+
+   // closeOnServer skips pinned and busy files, so keep going past them
+   for (LspBaseFile lbf : lru) {
+      if (over <= 0) break;
+      if (lbf.closeOnServer()) {
+         LspLog.logD("CLOSE ON SERVER " + lbf.getPath());
+         --over;
+       }
+    }
+}
+
+
+
+}       // end of class LspBaseWorkingSet
+
+
+
+
+/* end of LspBaseWorkingSet.java */
@@ -22,9 +22,23 @@
 
 package edu.brown.cs.bubbles.lspbase;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ *      Messages below the current level are discarded before they are built.
+ *      Those that are kept are formatted on the calling thread and handed to
+ *      a background writer through a bounded ring buffer; the writer flushes
+ *      once per batch and rotates the log file when it gets too large.
+ **/
 
 class LspLog implements LspBaseConstants
 {
@@ -36,9 +50,31 @@ class LspLog implements LspBaseConstants
 /*                                                                              */
 /********************************************************************************/
 
+private static final int LOG_RING_SIZE = 8192;
+private static final long LOG_MAX_SIZE = 64*1024*1024;
+private static final int LOG_KEEP = 3;
+
+private static File log_path = null;
 private static PrintStream log_file = null;
-private static LspBaseLogLevel log_level = LspBaseLogLevel.DEBUG;
-private static boolean use_stderr = false;
+private static long log_size = 0;
+private static long max_log_size = LOG_MAX_SIZE;
+private static volatile LspBaseLogLevel log_level = LspBaseLogLevel.DEBUG;
+private static volatile boolean use_stderr = false;
+
+private static final Object log_lock = new Object();
+private static final String [] log_ring = new String[LOG_RING_SIZE];
+private static int ring_head = 0;
+private static int ring_count = 0;
+private static int dropped_count = 0;
+private static boolean is_writing = false;
+
+
+static {
+   LogWriter lw = new LogWriter();
+   lw.start();
+   Runtime.getRuntime().addShutdownHook(new Thread(LspLog::flush,"LspLogFlush"));
+}
+
 
 
 /********************************************************************************/
@@ -53,6 +89,12 @@ static void setLogLevel(LspBaseLogLevel lvl)
 }
 
 
+static boolean isLogging(LspBaseLogLevel lvl)
+{
+   return lvl.ordinal() <= log_level.ordinal();
+}
+
+
 static void setLogFile(File f)
 {
    String f1 = f.getPath();
@@ -66,16 +108,20 @@ static void setLogFile(File f)
    File f2 = new File(f1);
    f.renameTo(f2);
    
-   try {
-      log_file = new PrintStream(new FileOutputStream(f),true);
-    }
-   catch (java.io.FileNotFoundException e) {
-      log_file = null;
-      LspLog.logE("Error initializing file: " + e);
+   synchronized (log_lock) {
+      waitForWriter();
+      log_path = f;
+      openLogFile();
     }
 }
 
 
+static void setMaxLogSize(long size)
+{
+   max_log_size = size;
+}
+
+
 static void setUseStdErr(boolean fg)
 {
    use_stderr = fg;
@@ -132,42 +178,296 @@ static public void log(String msg)		{ logI(msg); }
 
 
 
+/********************************************************************************/
+/*                                                                              */
+/*      Lazy logging methods                                                    */
+/*                                                                              */
+/********************************************************************************/
+
+static public void logE(Supplier<String> msg)
+{
+   log(LspBaseLogLevel.ERROR,msg,null);
+}
+
+static public void logI(Supplier<String> msg)
+{
+   log(LspBaseLogLevel.INFO,msg,null);
+}
+
+static public void logD(Supplier<String> msg)
+{
+   log(LspBaseLogLevel.DEBUG,msg,null);
+}
+
+
+/**
+ *      Log using String.format; the arguments are only formatted if the
+ *      message is kept.
+ **/
+
+static public void logDF(String fmt,Object ... args)
+{
+   if (!isLogging(LspBaseLogLevel.DEBUG)) return;
+   log(LspBaseLogLevel.DEBUG,String.format(fmt,args),null);
+}
+
+
+static public void log(LspBaseLogLevel lvl,Supplier<String> msg,Throwable t)
+{
+   if (!isLogging(lvl)) return;
+   log(lvl,msg.get(),t);
+}
+
+
+
 static public void log(LspBaseLogLevel lvl,String msg,Throwable t)
 {
-   if (lvl.ordinal() > log_level.ordinal()) return;
+   if (!isLogging(lvl)) return;
    
    String s = lvl.toString().substring(0,1);
    String pfx = "LSPBASE:" + s + ": ";
    
-   if (log_file != null) {
-      log_file.println(pfx + msg);
-      dumpTrace(null,t);
-    }
-   if (use_stderr || log_file == null) {
-      System.err.println(pfx + msg);
-      dumpTrace(null,t);
-      System.err.flush();
+   String line = pfx + msg;
+   if (t != null) {
+      StringWriter sw = new StringWriter();
+      PrintWriter pw = new PrintWriter(sw);
+      pw.println(line);
+      dumpTrace(pw,null,t);
+      pw.flush();
+      line = sw.toString();
+      if (line.endsWith("\n")) line = line.substring(0,line.length()-1);
     }
-   
-   if (log_file != null) log_file.flush();
+
+   addLine(line,lvl.ordinal() <= LspBaseLogLevel.WARNING.ordinal());
 }
 
 
 
-static private void dumpTrace(String pfx,Throwable t) {
+static private void dumpTrace(PrintWriter pw,String pfx,Throwable t) {
    if (t == null) return;
-   if (log_file != null) {
-      if (pfx != null) log_file.print(pfx);
-      t.printStackTrace(log_file);
+   if (pfx != null) pw.print(pfx);
+   t.printStackTrace(pw);
+   dumpTrace(pw,"CAUSED BY: ",t.getCause());
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Ring buffer                                                             */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Add a line for the writer.  When the buffer is full, important
+ *      messages wait for room while others are dropped and counted.
+ **/
+
+private static void addLine(String line,boolean important)
+{
+   synchronized (log_lock) {
+      while (ring_count >= LOG_RING_SIZE) {
+         if (!important) {
+            ++dropped_count;
+            return;
+          }
+         try {
+            log_lock.wait(100);
+          }
+         catch (InterruptedException e) {
+            return;
+          }
+       }
+      if (dropped_count > 0 && ring_count < LOG_RING_SIZE - 1) {
+         // mark the gap where it happened rather than at the end of a batch
+         putLine(getDroppedLine(dropped_count));
+         dropped_count = 0;
+       }
+      putLine(line);
     }
-   if (log_file == null || use_stderr) {
-      if (pfx != null) System.err.print(pfx);
-      t.printStackTrace();
+}
+
+
+private static void putLine(String line)
+{
+   log_ring[(ring_head + ring_count) % LOG_RING_SIZE] = line;
+   ++ring_count;
+   if (ring_count == 1) log_lock.notifyAll();
+}
+
+
+private static String getDroppedLine(int ct)
+{
+   return "LSPBASE:W: " + ct + " log messages dropped";
+}
+
+
+/**
+ *      Wait until everything logged so far has been written.
+ **/
+
+static void flush()
+{
+   long end = System.currentTimeMillis() + 2000;
+   synchronized (log_lock) {
+      while (ring_count > 0 || is_writing) {
+         long delta = end - System.currentTimeMillis();
+         if (delta <= 0) break;
+         try {
+            log_lock.wait(delta);
+          }
+         catch (InterruptedException e) {
+            break;
+          }
+       }
+    }
+}
+
+
+private static void waitForWriter()
+{
+   while (is_writing) {
+      try {
+         log_lock.wait(100);
+       }
+      catch (InterruptedException e) {
+         break;
+       }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods (writer thread only, except when opening)                */
+/*                                                                              */
+/********************************************************************************/
+
+private static void openLogFile()
+{
+   if (log_file != null) log_file.close();
+   try {
+      log_file = new PrintStream(new BufferedOutputStream(new FileOutputStream(log_path),65536),false);
+      log_size = 0;
+    }
+   catch (java.io.FileNotFoundException e) {
+      log_file = null;
+      System.err.println("LSPBASE: Error initializing log file: " + e);
+    }
+}
+
+
+private static void rotateLogFile()
+{
+   String base = log_path.getPath();
+   String ext = "";
+   int idx = base.lastIndexOf(".");
+   if (idx > 0 && idx > base.lastIndexOf(File.separator)) {
+      ext = base.substring(idx);
+      base = base.substring(0,idx);
+    }
+
+   log_file.close();
+   log_file = null;
+   new File(base + "." + LOG_KEEP + ext).delete();
+   for (int i = LOG_KEEP-1; i >= 1; --i) {
+      new File(base + "." + i + ext).renameTo(new File(base + "." + (i+1) + ext));
+    }
+   log_path.renameTo(new File(base + ".1" + ext));
+
+   openLogFile();
+}
+
+
+private static void writeLines(List<String> lines,int dropped)
+{
+   PrintStream ps = log_file;
+   boolean err = use_stderr || ps == null;
+
+   if (dropped > 0) {
+      lines.add(getDroppedLine(dropped));
+    }
+
+   for (String s : lines) {
+      if (ps != null) {
+         ps.println(s);
+         log_size += s.length() + 1;
+       }
+      if (err) System.err.println(s);
+    }
+
+   if (ps != null) {
+      ps.flush();
+      if (max_log_size > 0 && log_size > max_log_size) {
+         try {
+            synchronized (log_lock) {
+               rotateLogFile();
+             }
+          }
+         catch (Throwable t) {
+            System.err.println("LSPBASE: Problem rotating log: " + t);
+          }
+       }
     }
-   dumpTrace("CAUSED BY: ",t.getCause());
+   if (err) System.err.flush();
 }
 
 
+
+/********************************************************************************/
+/*                                                                              */
+/*      Writer thread                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+private static class LogWriter extends Thread {
+
+   LogWriter() {
+      super("LspLogWriter");
+      setDaemon(true);
+    }
+
+   @Override public void run() {
+      List<String> batch = new ArrayList<>();
+      for ( ; ; ) {
+         int dropped = 0;
+         batch.clear();
+         synchronized (log_lock) {
+            while (ring_count == 0) {
+               try {
+                  log_lock.wait();
+                }
+               catch (InterruptedException e) { }
+             }
+            while (ring_count > 0) {
+               batch.add(log_ring[ring_head]);
+               log_ring[ring_head] = null;
+               ring_head = (ring_head + 1) % LOG_RING_SIZE;
+               --ring_count;
+             }
+            dropped = dropped_count;
+            dropped_count = 0;
+            is_writing = true;
+            log_lock.notifyAll();
+          }
+         try {
+            writeLines(batch,dropped);
+          }
+         catch (Throwable t) {
+            System.err.println("LSPBASE: Problem writing log: " + t);
+          }
+         synchronized (log_lock) {
+            is_writing = false;
+            log_lock.notifyAll();
+          }
+       }
+    }
+
+}       // end of inner class LogWriter
+
+
+
 }       // end of class LspLog
 
 